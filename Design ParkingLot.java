@@ -8,6 +8,15 @@ Observer Pattern → Notifies system components when a parking spot is occupied
 
 // Vehicle and Parking Spot
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 enum VehicleType { CAR, TRUCK, BIKE }
 enum ParkingSpotType { COMPACT, LARGE, BIKE }
@@ -23,6 +32,10 @@ abstract class Vehicle {
         this.type = type;
     }
 
+    public VehicleType getType() {
+        return type;
+    }
+
     public void assignTicket(ParkingTicket ticket) {
         this.ticket = ticket;
     }
@@ -46,46 +59,85 @@ class Bike extends Vehicle {
     }
 }
 
+// Spot classes a vehicle may use, best fit first; later entries are fallbacks once the
+// earlier classes are full (a bike only takes a compact spot when bike spots run out).
+class SpotMatcher {
+    private static final Map<VehicleType, ParkingSpotType[]> CANDIDATES = new EnumMap<>(VehicleType.class);
+
+    static {
+        CANDIDATES.put(VehicleType.BIKE, new ParkingSpotType[] { ParkingSpotType.BIKE, ParkingSpotType.COMPACT });
+        CANDIDATES.put(VehicleType.CAR, new ParkingSpotType[] { ParkingSpotType.COMPACT, ParkingSpotType.LARGE });
+        CANDIDATES.put(VehicleType.TRUCK, new ParkingSpotType[] { ParkingSpotType.LARGE });
+    }
+
+    public static ParkingSpotType[] candidates(VehicleType vehicleType) {
+        return CANDIDATES.get(vehicleType);
+    }
+}
+
 class ParkingSpot {
+    private int floorNumber;
     private int spotId;
-    private boolean isOccupied;
+    private final AtomicBoolean occupied = new AtomicBoolean();
     private ParkingSpotType type;
 
-    public ParkingSpot(int spotId, ParkingSpotType type) {
+    public ParkingSpot(int floorNumber, int spotId, ParkingSpotType type) {
+        this.floorNumber = floorNumber;
         this.spotId = spotId;
         this.type = type;
-        this.isOccupied = false;
+    }
+
+    public int getFloorNumber() {
+        return floorNumber;
+    }
+
+    public int getSpotId() {
+        return spotId;
+    }
+
+    public ParkingSpotType getType() {
+        return type;
     }
 
     public boolean isAvailable() {
-        return !isOccupied;
+        return !occupied.get();
     }
 
-    public void occupySpot() {
-        isOccupied = true;
+    // Claims the spot; false if another gate got it first.
+    public boolean tryOccupy() {
+        return occupied.compareAndSet(false, true);
     }
 
-    public void freeSpot() {
-        isOccupied = false;
+    // Frees the spot; false if it was not occupied.
+    public boolean tryFree() {
+        return occupied.compareAndSet(true, false);
     }
 }
 
 //Ticket and Payment System
 class ParkingTicket {
-    private static int counter = 1;
+    private static final AtomicInteger counter = new AtomicInteger(1);
     private int ticketNo;
+    private ParkingSpot spot;
     private Date issuedAt;
+    private Date exitedAt;
     private Date paidAt;
     private double amount;
     private TicketStatus status;
 
-    public ParkingTicket(double amount) {
-        this.ticketNo = counter++;
+    public ParkingTicket(ParkingSpot spot) {
+        this.ticketNo = counter.getAndIncrement();
+        this.spot = spot;
         this.issuedAt = new Date();
-        this.amount = amount;
         this.status = TicketStatus.ACTIVE;
     }
 
+    // Fixes the fee when the vehicle leaves; called once, under the ticket's lock.
+    public void markAsExited(Date exitedAt, double amount) {
+        this.exitedAt = exitedAt;
+        this.amount = amount;
+    }
+
     public void markAsPaid() {
         this.status = TicketStatus.PAID;
         this.paidAt = new Date();
@@ -98,6 +150,79 @@ class ParkingTicket {
     public int getTicketNo() {
         return ticketNo;
     }
+
+    public ParkingSpot getSpot() {
+        return spot;
+    }
+
+    public Date getIssuedAt() {
+        return issuedAt;
+    }
+
+    public Date getExitedAt() {
+        return exitedAt;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+}
+
+interface TariffEngine {
+    double price(ParkingSpotType type, long durationMillis);
+}
+
+// Hourly bands per spot type, billed per started quarter hour and capped per day. The rules are
+// compiled up front into a cumulative price (in cents) for every quarter of a day, so pricing is
+// one division and one array read. Stays longer than a day are billed per 24 hours: each full
+// day at the daily cap, and the remainder priced like a new stay from the first band.
+class BandedTariffEngine implements TariffEngine {
+    private static final long QUARTER_MILLIS = 15 * 60 * 1000L;
+    private static final int QUARTERS_PER_DAY = 96;
+
+    private final long[][] centsByQuarter = new long[ParkingSpotType.values().length][];
+    private final long[] dailyCapCents = new long[ParkingSpotType.values().length];
+
+    // hourlyRates[type][h] is the rate for hour h of each day of the stay; the last band applies
+    // to every later hour of that day.
+    public BandedTariffEngine(Map<ParkingSpotType, double[]> hourlyRates, Map<ParkingSpotType, Double> dailyCaps) {
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            double[] bands = hourlyRates.get(type);
+            long cap = Math.round(dailyCaps.get(type) * 100);
+            long[] table = new long[QUARTERS_PER_DAY + 1];
+            // Summed in quarter-cents (a quarter hour at R cents an hour costs exactly R of them)
+            // and rounded once per entry, so rounding never accumulates across quarters.
+            long quarterCents = 0;
+            for (int q = 1; q <= QUARTERS_PER_DAY; q++) {
+                double hourRate = bands[Math.min((q - 1) / 4, bands.length - 1)];
+                quarterCents += Math.round(hourRate * 100);
+                table[q] = Math.min((quarterCents + 2) / 4, cap);
+            }
+            centsByQuarter[type.ordinal()] = table;
+            dailyCapCents[type.ordinal()] = table[QUARTERS_PER_DAY];
+        }
+    }
+
+    public static BandedTariffEngine standard() {
+        Map<ParkingSpotType, double[]> rates = new EnumMap<>(ParkingSpotType.class);
+        rates.put(ParkingSpotType.COMPACT, new double[] { 4.0, 3.0 });
+        rates.put(ParkingSpotType.LARGE, new double[] { 6.0, 5.0 });
+        rates.put(ParkingSpotType.BIKE, new double[] { 2.0, 1.0 });
+        Map<ParkingSpotType, Double> caps = new EnumMap<>(ParkingSpotType.class);
+        caps.put(ParkingSpotType.COMPACT, 25.0);
+        caps.put(ParkingSpotType.LARGE, 40.0);
+        caps.put(ParkingSpotType.BIKE, 10.0);
+        return new BandedTariffEngine(rates, caps);
+    }
+
+    // Every started quarter is billed, including the first.
+    @Override
+    public double price(ParkingSpotType type, long durationMillis) {
+        long quarters = Math.max(1, (durationMillis + QUARTER_MILLIS - 1) / QUARTER_MILLIS);
+        long cents = (quarters / QUARTERS_PER_DAY) * dailyCapCents[type.ordinal()]
+                + centsByQuarter[type.ordinal()][(int) (quarters % QUARTERS_PER_DAY)];
+        return cents / 100.0;
+    }
 }
 
 interface PaymentStrategy {
@@ -125,95 +250,845 @@ class CashPayment implements PaymentStrategy {
 }
 
 
+//Occupancy Events (Observer)
+
+// An occupy/free event packed into one long: kind in bit 62, spot type in bits 56-61,
+// floor number in bits 32-55, spot id in the low 32 bits.
+class ParkingEvents {
+    private static final long OCCUPIED_BIT = 1L << 62;
+
+    public static long occupied(ParkingSpot spot) {
+        return OCCUPIED_BIT | pack(spot);
+    }
+
+    public static long freed(ParkingSpot spot) {
+        return pack(spot);
+    }
+
+    private static long pack(ParkingSpot spot) {
+        return ((long) spot.getType().ordinal() << 56) | ((long) spot.getFloorNumber() << 32) | spot.getSpotId();
+    }
+
+    public static boolean isOccupied(long event) {
+        return (event & OCCUPIED_BIT) != 0;
+    }
+
+    public static ParkingSpotType spotType(long event) {
+        return ParkingSpotType.values()[(int) (event >>> 56) & 0x3F];
+    }
+
+    public static int floorNumber(long event) {
+        return (int) (event >>> 32) & 0xFFFFFF;
+    }
+
+    public static int spotId(long event) {
+        return (int) event;
+    }
+}
+
+interface ParkingEventListener {
+    // Called on the subscriber's thread; endOfBatch marks the last event delivered by the current
+    // poll (a poll ends when it reaches a slot not yet written, or at a drop).
+    void onEvent(long sequence, long event, boolean endOfBatch);
+
+    // Called when the subscriber fell a full ring behind and the events it missed were overwritten;
+    // count covers the whole gap, so a listener that resyncs does so once per lap, not per event.
+    default void onDropped(long count) {
+    }
+
+    // Called when onEvent or onDropped threw; the event counts as consumed and delivery goes on.
+    default void onError(long sequence, RuntimeException error) {
+        System.err.println("Parking event listener failed at sequence " + sequence + ": " + error);
+    }
+}
+
+// Bounded multi-producer ring of packed events. Producers claim a sequence from an AtomicLong
+// and publish into its slot with a stamp (sequence + 1, negated while the write is in flight);
+// they never wait for subscribers, so the oldest events are overwritten once the ring is full.
+// Each subscriber polls from its own thread, checks the stamp on every slot, and skips ahead
+// and counts drops when it has been lapped.
+class ParkingEventBus {
+    private static final long IDLE_PARK_NANOS = 100_000;
+
+    private final int mask;
+    private final AtomicLongArray events;
+    private final AtomicLongArray stamps;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    public ParkingEventBus(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.events = new AtomicLongArray(capacity);
+        this.stamps = new AtomicLongArray(capacity);
+    }
+
+    public void publish(long event) {
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        while (true) {
+            long stamp = stamps.get(slot);
+            if (stamp < 0) {
+                // the previous lap is mid-write in this slot
+                Thread.onSpinWait();
+                continue;
+            }
+            if (stamp > sequence) {
+                // a later lap already took the slot; this event is lost to every subscriber
+                return;
+            }
+            if (stamps.compareAndSet(slot, stamp, -(sequence + 1))) {
+                break;
+            }
+        }
+        events.set(slot, event);
+        stamps.set(slot, sequence + 1);
+    }
+
+    // Sequence the next published event will get.
+    public long getPublished() {
+        return nextSequence.get();
+    }
+
+    public Subscription subscribe(String name, ParkingEventListener listener) {
+        return subscribe(name, listener, nextSequence.get());
+    }
+
+    public Subscription subscribe(String name, ParkingEventListener listener, long fromSequence) {
+        Subscription subscription = new Subscription(name, listener, fromSequence);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    class Subscription implements AutoCloseable {
+        private final ParkingEventListener listener;
+        private final Thread thread;
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong gaps = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private volatile long position;
+        private volatile boolean running = true;
+
+        private Subscription(String name, ParkingEventListener listener, long fromSequence) {
+            this.listener = listener;
+            this.position = fromSequence;
+            this.thread = new Thread(this::run, "parking-events-" + name);
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            long next = position;
+            while (running) {
+                long published = nextSequence.get();
+                if (published - next > mask + 1) {
+                    long skipped = published - (mask + 1) - next;
+                    next += skipped;
+                    drop(next, skipped);
+                }
+                long polled = next;
+                // Each event is held back until the next one is read, so endOfBatch can go on
+                // whichever event turns out to be the last this poll delivers.
+                long heldSequence = -1;
+                long heldEvent = 0;
+                while (next < published) {
+                    int slot = (int) (next & mask);
+                    long stamp = stamps.get(slot);
+                    if (Math.abs(stamp) > next + 1) {
+                        // Lapped while reading: everything older than one ring behind the newest
+                        // claim is gone too, so the whole gap is skipped and reported at once.
+                        if (heldSequence >= 0) {
+                            deliver(heldSequence, heldEvent, true);
+                            heldSequence = -1;
+                        }
+                        published = nextSequence.get();
+                        long resume = Math.max(next + 1, published - (mask + 1));
+                        drop(next, resume - next);
+                        next = resume;
+                        continue;
+                    }
+                    if (stamp != next + 1) {
+                        // claimed but not yet written
+                        break;
+                    }
+                    long event = events.get(slot);
+                    if (stamps.get(slot) != stamp) {
+                        continue;
+                    }
+                    if (heldSequence >= 0) {
+                        deliver(heldSequence, heldEvent, false);
+                    }
+                    heldSequence = next;
+                    heldEvent = event;
+                    next++;
+                }
+                if (heldSequence >= 0) {
+                    deliver(heldSequence, heldEvent, true);
+                }
+                position = next;
+                if (next == polled) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }
+
+        // A throwing listener must not kill the subscriber thread and leave it silently behind.
+        private void deliver(long sequence, long event, boolean endOfBatch) {
+            try {
+                listener.onEvent(sequence, event, endOfBatch);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                listener.onError(sequence, e);
+            }
+        }
+
+        private void drop(long sequence, long count) {
+            dropped.addAndGet(count);
+            gaps.incrementAndGet();
+            try {
+                listener.onDropped(count);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                listener.onError(sequence, e);
+            }
+        }
+
+        // Next sequence this subscriber will read; equal to getPublished() once caught up.
+        public long getPosition() {
+            return position;
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        // Number of onDropped calls, one per run of overwritten events.
+        public long getGaps() {
+            return gaps.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        // False once closed, or if the subscriber thread died (e.g. onError itself threw).
+        public boolean isAlive() {
+            return thread.isAlive();
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// Free spots per floor and type for display boards, kept current from the event stream. It
+// starts from (and after any drop, returns to) a snapshot taken under each floor's lock along
+// with the bus sequence at that moment, and ignores that floor's events older than the snapshot,
+// so the counts are exact rather than drifting.
+class AvailabilityView implements ParkingEventListener {
+    private final ParkingLot lot;
+    private final int numTypes = ParkingSpotType.values().length;
+    private final AtomicIntegerArray freeSpots;
+    private final long[] snapshotSequence;
+    private ParkingEventBus.Subscription subscription;
+
+    private AvailabilityView(ParkingLot lot) {
+        this.lot = lot;
+        this.freeSpots = new AtomicIntegerArray(lot.getNumFloors() * numTypes);
+        this.snapshotSequence = new long[lot.getNumFloors()];
+    }
+
+    public static AvailabilityView subscribe(ParkingLot lot) {
+        AvailabilityView view = new AvailabilityView(lot);
+        long from = lot.getEventBus().getPublished();
+        view.resync();
+        view.subscription = lot.getEventBus().subscribe("availability", view, from);
+        return view;
+    }
+
+    private void resync() {
+        int[] counts = new int[numTypes];
+        for (int floor = 1; floor <= snapshotSequence.length; floor++) {
+            snapshotSequence[floor - 1] = lot.snapshotFreeSpots(floor, counts);
+            for (int type = 0; type < numTypes; type++) {
+                freeSpots.set((floor - 1) * numTypes + type, counts[type]);
+            }
+        }
+    }
+
+    @Override
+    public void onEvent(long sequence, long event, boolean endOfBatch) {
+        int floor = ParkingEvents.floorNumber(event);
+        if (sequence < snapshotSequence[floor - 1]) {
+            return;
+        }
+        int index = (floor - 1) * numTypes + ParkingEvents.spotType(event).ordinal();
+        freeSpots.lazySet(index, freeSpots.get(index) + (ParkingEvents.isOccupied(event) ? -1 : 1));
+    }
+
+    @Override
+    public void onDropped(long count) {
+        resync();
+    }
+
+    public int getFreeSpots(int floorNumber, ParkingSpotType type) {
+        return freeSpots.get((floorNumber - 1) * numTypes + type.ordinal());
+    }
+
+    public ParkingEventBus.Subscription getSubscription() {
+        return subscription;
+    }
+
+    // Waits until every event published so far has been applied; fails instead of waiting
+    // forever if the subscription has stopped.
+    public void awaitCaughtUp() throws InterruptedException {
+        long target = lot.getEventBus().getPublished();
+        while (subscription.getPosition() < target) {
+            if (!subscription.isAlive()) {
+                throw new IllegalStateException("Availability subscription stopped at "
+                        + subscription.getPosition() + " of " + target);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    public String toString() {
+        StringBuilder board = new StringBuilder();
+        for (int floor = 1; floor <= snapshotSequence.length; floor++) {
+            board.append("Floor ").append(floor).append(':');
+            for (ParkingSpotType type : ParkingSpotType.values()) {
+                board.append(' ').append(type).append('=').append(getFreeSpots(floor, type));
+            }
+            if (floor < snapshotSequence.length) {
+                board.append(" | ");
+            }
+        }
+        return board.toString();
+    }
+}
+
 //Parking Lot & Floor
 
+// Free spots of one type on one floor, as a stack of indexes into the floor's spot list.
+// Push and pop are O(1) however full the floor is.
+class FreeSpotStack {
+    private int[] spotIndexes;
+    private int size;
+
+    public FreeSpotStack(int capacity) {
+        this.spotIndexes = new int[capacity];
+    }
+
+    public void push(int spotIndex) {
+        if (size == spotIndexes.length) {
+            spotIndexes = Arrays.copyOf(spotIndexes, Math.max(4, size * 2));
+        }
+        spotIndexes[size++] = spotIndex;
+    }
+
+    // Returns -1 when empty.
+    public int pop() {
+        return size == 0 ? -1 : spotIndexes[--size];
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+// Set of floor indexes with lock-free set/clear, so gates on different floors never share a lock.
+class ConcurrentBitSet {
+    private final AtomicLongArray words;
+
+    public ConcurrentBitSet(int size) {
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public void set(int index) {
+        long mask = 1L << index;
+        long word;
+        while (((word = words.get(index >>> 6)) & mask) == 0 && !words.compareAndSet(index >>> 6, word, word | mask)) {
+            // another bit in the word changed; retry
+        }
+    }
+
+    public void clear(int index) {
+        long mask = 1L << index;
+        long word;
+        while (((word = words.get(index >>> 6)) & mask) != 0 && !words.compareAndSet(index >>> 6, word, word & ~mask)) {
+            // another bit in the word changed; retry
+        }
+    }
+
+    // Returns -1 if no bit at or after fromIndex is set.
+    public int nextSetBit(int fromIndex) {
+        int wordIndex = fromIndex >>> 6;
+        if (wordIndex >= words.length()) {
+            return -1;
+        }
+        long word = words.get(wordIndex) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length()) {
+                return -1;
+            }
+            word = words.get(wordIndex);
+        }
+    }
+}
+
+// Each floor is its own lock stripe: allocation and release only lock the floor they touch.
 class ParkingFloor {
     private int floorNumber;
     private List<ParkingSpot> spots;
+    private Map<ParkingSpotType, FreeSpotStack> freeSpots;
 
+    // Default layout: a fifth of the spots are large, a fifth are for bikes, the rest compact.
     public ParkingFloor(int floorNumber, int numSpots) {
+        this(floorNumber, numSpots - 2 * (numSpots / 5), numSpots / 5, numSpots / 5);
+    }
+
+    public ParkingFloor(int floorNumber, int numCompact, int numLarge, int numBike) {
         this.floorNumber = floorNumber;
         this.spots = new ArrayList<>();
-        for (int i = 1; i <= numSpots; i++) {
-            spots.add(new ParkingSpot(i, ParkingSpotType.COMPACT));
+        this.freeSpots = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            freeSpots.put(type, new FreeSpotStack(0));
+        }
+        addSpots(ParkingSpotType.COMPACT, numCompact);
+        addSpots(ParkingSpotType.LARGE, numLarge);
+        addSpots(ParkingSpotType.BIKE, numBike);
+        // Pushed in reverse so the lowest-numbered spots are handed out first.
+        for (int i = spots.size() - 1; i >= 0; i--) {
+            freeSpots.get(spots.get(i).getType()).push(i);
         }
     }
 
-    public ParkingSpot findAvailableSpot() {
-        for (ParkingSpot spot : spots) {
-            if (spot.isAvailable()) {
-                return spot;
-            }
+    private void addSpots(ParkingSpotType type, int count) {
+        for (int i = 0; i < count; i++) {
+            spots.add(new ParkingSpot(floorNumber, spots.size() + 1, type));
         }
-        return null;
+    }
+
+    public int getFloorNumber() {
+        return floorNumber;
+    }
+
+    public synchronized int getFreeSpotCount(ParkingSpotType type) {
+        return freeSpots.get(type).size();
+    }
+
+    // Takes a free spot of the given type off the index, or returns null if there is none.
+    public synchronized ParkingSpot allocateSpot(ParkingSpotType type) {
+        int index = freeSpots.get(type).pop();
+        if (index < 0) {
+            return null;
+        }
+        ParkingSpot spot = spots.get(index);
+        if (!spot.tryOccupy()) {
+            throw new IllegalStateException("Free list held occupied spot " + spot.getSpotId() + " on floor " + floorNumber);
+        }
+        return spot;
+    }
+
+    public synchronized void releaseSpot(ParkingSpot spot) {
+        if (!spot.tryFree()) {
+            throw new IllegalStateException("Spot " + spot.getSpotId() + " on floor " + floorNumber + " is not occupied");
+        }
+        freeSpots.get(spot.getType()).push(spot.getSpotId() - 1);
+    }
+
+    public synchronized boolean hasFreeSpot(ParkingSpotType type) {
+        return freeSpots.get(type).size() > 0;
     }
 }
 
 class ParkingLot {
-    private static ParkingLot instance;
+    private static volatile ParkingLot instance;
     private List<ParkingFloor> floors;
-    private List<ParkingTicket> activeTickets;
+    private Map<Integer, ParkingTicket> activeTickets;
+    // Per spot type, the floors that still have a free spot of that type.
+    private Map<ParkingSpotType, ConcurrentBitSet> floorsWithFreeSpots;
+    // Lot-wide free spot count per type, kept in step with the floors so "full" needs no scan.
+    private Map<ParkingSpotType, AtomicInteger> availableSpots;
+    private Map<ParkingSpotType, Integer> totalSpots;
+    private volatile TariffEngine tariffEngine = BandedTariffEngine.standard();
+    // Occupy/free events are published under the floor lock, so per floor they are in sequence order.
+    private final ParkingEventBus eventBus = new ParkingEventBus(1 << 16);
 
     private ParkingLot(int numFloors, int spotsPerFloor) {
         floors = new ArrayList<>();
-        activeTickets = new ArrayList<>();
+        activeTickets = new ConcurrentHashMap<>();
+        floorsWithFreeSpots = new EnumMap<>(ParkingSpotType.class);
+        availableSpots = new EnumMap<>(ParkingSpotType.class);
+        totalSpots = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            floorsWithFreeSpots.put(type, new ConcurrentBitSet(numFloors));
+            availableSpots.put(type, new AtomicInteger());
+        }
         for (int i = 1; i <= numFloors; i++) {
-            floors.add(new ParkingFloor(i, spotsPerFloor));
+            ParkingFloor floor = new ParkingFloor(i, spotsPerFloor);
+            floors.add(floor);
+            for (ParkingSpotType type : ParkingSpotType.values()) {
+                if (floor.hasFreeSpot(type)) {
+                    floorsWithFreeSpots.get(type).set(i - 1);
+                }
+                availableSpots.get(type).addAndGet(floor.getFreeSpotCount(type));
+            }
+        }
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            totalSpots.put(type, availableSpots.get(type).get());
         }
     }
 
     public static ParkingLot getInstance(int numFloors, int spotsPerFloor) {
-        if (instance == null) {
-            instance = new ParkingLot(numFloors, spotsPerFloor);
+        ParkingLot lot = instance;
+        if (lot == null) {
+            synchronized (ParkingLot.class) {
+                lot = instance;
+                if (lot == null) {
+                    lot = new ParkingLot(numFloors, spotsPerFloor);
+                    instance = lot;
+                }
+            }
         }
-        return instance;
+        return lot;
     }
 
     public ParkingTicket issueTicket(Vehicle vehicle) {
-        for (ParkingFloor floor : floors) {
-            ParkingSpot spot = floor.findAvailableSpot();
+        return issueTicket(vehicle, 0);
+    }
+
+    // Gates start looking on their own floor, so concurrent gates mostly lock different floors.
+    // Returns null when the lot is full for this vehicle. Nothing is printed here: a shared
+    // PrintStream would serialize every gate on its lock.
+    public ParkingTicket issueTicket(Vehicle vehicle, int gateId) {
+        ParkingSpot spot = allocateSpot(vehicle.getType(), gateId % floors.size());
+        if (spot == null) {
+            return null;
+        }
+        ParkingTicket ticket = new ParkingTicket(spot);
+        vehicle.assignTicket(ticket);
+        activeTickets.put(ticket.getTicketNo(), ticket);
+        return ticket;
+    }
+
+    public boolean isFull(VehicleType vehicleType) {
+        for (ParkingSpotType type : SpotMatcher.candidates(vehicleType)) {
+            if (availableSpots.get(type).get() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getAvailableSpots(ParkingSpotType type) {
+        return availableSpots.get(type).get();
+    }
+
+    public int getTotalSpots(ParkingSpotType type) {
+        return totalSpots.get(type);
+    }
+
+    // Free and total spots per type for display boards, read straight from the counters.
+    public String getAvailabilitySummary() {
+        StringBuilder summary = new StringBuilder();
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(type).append(' ').append(availableSpots.get(type).get()).append('/').append(totalSpots.get(type));
+        }
+        return summary.toString();
+    }
+
+    // Tries the vehicle's spot classes in best-fit order; classes whose counter is zero are
+    // skipped without touching the floor index.
+    private ParkingSpot allocateSpot(VehicleType vehicleType, int startFloor) {
+        for (ParkingSpotType type : SpotMatcher.candidates(vehicleType)) {
+            if (availableSpots.get(type).get() == 0) {
+                continue;
+            }
+            ParkingSpot spot = allocateSpot(type, startFloor);
             if (spot != null) {
-                spot.occupySpot();
-                ParkingTicket ticket = new ParkingTicket(10.0);  // $10 default fee
-                vehicle.assignTicket(ticket);
-                activeTickets.add(ticket);
-                System.out.println("Issued Ticket #" + ticket.getTicketNo() + " to " + vehicle.licenseNo);
-                return ticket;
+                return spot;
             }
         }
-        System.out.println("No parking spots available.");
         return null;
     }
 
+    public ParkingTicket getTicket(int ticketNo) {
+        return activeTickets.get(ticketNo);
+    }
+
+    public ParkingEventBus getEventBus() {
+        return eventBus;
+    }
+
+    public int getNumFloors() {
+        return floors.size();
+    }
+
+    // Fills counts with the floor's free spots per type and returns the first bus sequence not
+    // reflected in them.
+    public long snapshotFreeSpots(int floorNumber, int[] counts) {
+        ParkingFloor floor = floors.get(floorNumber - 1);
+        synchronized (floor) {
+            for (ParkingSpotType type : ParkingSpotType.values()) {
+                counts[type.ordinal()] = floor.getFreeSpotCount(type);
+            }
+            return eventBus.getPublished();
+        }
+    }
+
+    public void setTariffEngine(TariffEngine tariffEngine) {
+        this.tariffEngine = tariffEngine;
+    }
+
+    // Prices the stay, frees the spot and retires the ticket. The ticket lock is taken before
+    // the registry remove, so a concurrent payment on the same ticket sees either no exit or a
+    // priced one.
+    public ParkingTicket exit(int ticketNo) {
+        ParkingTicket ticket = activeTickets.get(ticketNo);
+        if (ticket == null) {
+            System.out.println("Ticket #" + ticketNo + " is not active.");
+            return null;
+        }
+        synchronized (ticket) {
+            if (!activeTickets.remove(ticketNo, ticket)) {
+                System.out.println("Ticket #" + ticketNo + " is not active.");
+                return null;
+            }
+            Date exitedAt = new Date();
+            long duration = exitedAt.getTime() - ticket.getIssuedAt().getTime();
+            ticket.markAsExited(exitedAt, tariffEngine.price(ticket.getSpot().getType(), duration));
+            releaseSpot(ticket.getSpot());
+        }
+        return ticket;
+    }
+
+    // First floor at or after startFloor (wrapping) with a free spot of this type, found via the
+    // bitset rather than a floor scan. The bit is only changed under the floor's lock, so it can
+    // be stale for a moment; a floor that turns out to be full is skipped.
+    private ParkingSpot allocateSpot(ParkingSpotType type, int startFloor) {
+        ConcurrentBitSet candidates = floorsWithFreeSpots.get(type);
+        int floorIndex = candidates.nextSetBit(startFloor);
+        boolean wrapped = false;
+        while (true) {
+            if (floorIndex < 0) {
+                if (wrapped || startFloor == 0) {
+                    return null;
+                }
+                wrapped = true;
+                floorIndex = candidates.nextSetBit(0);
+                continue;
+            }
+            if (wrapped && floorIndex >= startFloor) {
+                return null;
+            }
+            ParkingFloor floor = floors.get(floorIndex);
+            synchronized (floor) {
+                ParkingSpot spot = floor.allocateSpot(type);
+                if (!floor.hasFreeSpot(type)) {
+                    candidates.clear(floorIndex);
+                }
+                if (spot != null) {
+                    availableSpots.get(type).decrementAndGet();
+                    eventBus.publish(ParkingEvents.occupied(spot));
+                    return spot;
+                }
+            }
+            floorIndex = candidates.nextSetBit(floorIndex + 1);
+        }
+    }
+
+    private void releaseSpot(ParkingSpot spot) {
+        ParkingFloor floor = floors.get(spot.getFloorNumber() - 1);
+        synchronized (floor) {
+            floor.releaseSpot(spot);
+            floorsWithFreeSpots.get(spot.getType()).set(spot.getFloorNumber() - 1);
+            availableSpots.get(spot.getType()).incrementAndGet();
+            eventBus.publish(ParkingEvents.freed(spot));
+        }
+    }
+
+    // Locks the ticket, not the lot, so two gates cannot both charge it. A ticket paid before
+    // it has exited is exited first, so the charge is always the tariff amount.
     public void processPayment(ParkingTicket ticket, PaymentStrategy paymentMethod) {
-        if (ticket.getStatus() == TicketStatus.ACTIVE) {
-            paymentMethod.processPayment(ticket.amount);
-            ticket.markAsPaid();
-            System.out.println("Ticket #" + ticket.getTicketNo() + " has been paid.");
-        } else {
-            System.out.println("Ticket already paid.");
+        synchronized (ticket) {
+            if (ticket.getStatus() == TicketStatus.ACTIVE) {
+                if (ticket.getExitedAt() == null) {
+                    exit(ticket.getTicketNo());
+                }
+                paymentMethod.processPayment(ticket.getAmount());
+                ticket.markAsPaid();
+                System.out.println("Ticket #" + ticket.getTicketNo() + " has been paid.");
+            } else {
+                System.out.println("Ticket already paid.");
+            }
         }
     }
 }
 
 //main
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         ParkingLot lot = ParkingLot.getInstance(2, 5);
+        AvailabilityView board = AvailabilityView.subscribe(lot);
 
         Vehicle car1 = new Car("ABC-123");
         Vehicle truck1 = new Truck("XYZ-999");
 
-        ParkingTicket ticket1 = lot.issueTicket(car1);
-        ParkingTicket ticket2 = lot.issueTicket(truck1);
+        ParkingTicket ticket1 = park(lot, car1);
+        ParkingTicket ticket2 = park(lot, truck1);
+        park(lot, new Truck("TRK-002"));
+        park(lot, new Truck("TRK-003"));
+        System.out.println("Full for trucks: " + lot.isFull(VehicleType.TRUCK) + ", for bikes: " + lot.isFull(VehicleType.BIKE));
+        System.out.println("Available: " + lot.getAvailabilitySummary());
 
         PaymentStrategy creditCard = new CreditCardPayment("1234-5678-9876-5432");
+        lot.exit(ticket1.getTicketNo());
         lot.processPayment(ticket1, creditCard);
 
         PaymentStrategy cash = new CashPayment();
         lot.processPayment(ticket2, cash);
+        System.out.println("Available: " + lot.getAvailabilitySummary());
+        board.awaitCaughtUp();
+        System.out.println("Board: " + board);
+
+        TariffEngine tariff = BandedTariffEngine.standard();
+        System.out.println("2h30m compact: $" + tariff.price(ParkingSpotType.COMPACT, 150 * 60 * 1000L)
+                + ", 30h large: $" + tariff.price(ParkingSpotType.LARGE, 30 * 60 * 60 * 1000L));
+    }
+
+    private static ParkingTicket park(ParkingLot lot, Vehicle vehicle) {
+        ParkingTicket ticket = lot.issueTicket(vehicle);
+        if (ticket != null) {
+            System.out.println("Issued Ticket #" + ticket.getTicketNo() + " to " + vehicle.licenseNo);
+        } else {
+            System.out.println("No parking spots available for " + vehicle.getType() + ".");
+        }
+        return ticket;
     }
 }
 
+// Concurrency check: 64 gates issue and release tickets at once against one lot; every spot
+// handed out is recorded, and a spot held by two live tickets at any moment fails the run.
+// An availability view must end up matching the lot, and a deliberately slow subscriber must
+// only drop events, never hold the gates up.
+class EntryGateStressTest {
+    public static void main(String[] args) throws Exception {
+        int gates = 64;
+        int floors = 8;
+        int spotsPerFloor = 250;
+        int operationsPerGate = 20_000;
+        ParkingLot lot = ParkingLot.getInstance(floors, spotsPerFloor);
+        Map<ParkingSpot, Integer> holders = new ConcurrentHashMap<>();
+        AtomicInteger doubleAllocations = new AtomicInteger();
+        AtomicInteger issued = new AtomicInteger();
+        AtomicInteger turnedAway = new AtomicInteger();
+        CyclicBarrier start = new CyclicBarrier(gates);
+        AvailabilityView board = AvailabilityView.subscribe(lot);
+        ParkingEventBus.Subscription slow = lot.getEventBus().subscribe("slow", (sequence, event, endOfBatch) -> LockSupport.parkNanos(50_000));
 
+        long startNanos = System.nanoTime();
+        Thread[] threads = new Thread[gates];
+        for (int g = 0; g < gates; g++) {
+            int gateId = g;
+            threads[g] = new Thread(() -> {
+                List<ParkingTicket> parked = new ArrayList<>();
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < operationsPerGate; i++) {
+                    if (parked.isEmpty() || random.nextInt(3) != 0) {
+                        ParkingTicket ticket = lot.issueTicket(vehicle("G" + gateId + "-" + i, random.nextInt(3)), gateId);
+                        if (ticket == null) {
+                            turnedAway.incrementAndGet();
+                            continue;
+                        }
+                        issued.incrementAndGet();
+                        if (holders.putIfAbsent(ticket.getSpot(), ticket.getTicketNo()) != null) {
+                            doubleAllocations.incrementAndGet();
+                        }
+                        parked.add(ticket);
+                    } else {
+                        ParkingTicket ticket = parked.remove(random.nextInt(parked.size()));
+                        holders.remove(ticket.getSpot());
+                        lot.exit(ticket.getTicketNo());
+                    }
+                }
+                for (ParkingTicket ticket : parked) {
+                    holders.remove(ticket.getSpot());
+                    lot.exit(ticket.getTicketNo());
+                }
+            }, "gate-" + g);
+            threads[g].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long gateMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        board.awaitCaughtUp();
+        boolean boardMatches = true;
+        int[] counts = new int[ParkingSpotType.values().length];
+        for (int floor = 1; floor <= floors; floor++) {
+            lot.snapshotFreeSpots(floor, counts);
+            for (ParkingSpotType type : ParkingSpotType.values()) {
+                boardMatches &= board.getFreeSpots(floor, type) == counts[type.ordinal()];
+            }
+        }
+        slow.close();
 
+        // With every vehicle gone, the lot must hand out each spot exactly once more: trucks
+        // take the large spots, then bikes take the bike spots and fall back to compact ones.
+        boolean countersRestored = true;
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            countersRestored &= lot.getAvailableSpots(type) == lot.getTotalSpots(type);
+        }
+        Set<ParkingSpot> refill = new HashSet<>();
+        for (int kind : new int[] { 2, 1 }) {
+            ParkingTicket ticket;
+            while ((ticket = lot.issueTicket(vehicle("refill", kind))) != null) {
+                if (!refill.add(ticket.getSpot())) {
+                    doubleAllocations.incrementAndGet();
+                }
+            }
+        }
+
+        System.out.println("Gates: " + gates + ", tickets issued: " + issued.get() + ", turned away (full): " + turnedAway.get());
+        System.out.println("Spots after drain: " + refill.size() + " of " + floors * spotsPerFloor);
+        System.out.println("Double allocations: " + doubleAllocations.get());
+        System.out.println("Gates finished in " + gateMillis + " ms; events published: " + lot.getEventBus().getPublished()
+                + ", board matches lot: " + boardMatches + " (board resyncs: " + board.getSubscription().getGaps()
+                + " for " + board.getSubscription().getDropped() + " events dropped), slow subscriber dropped: " + slow.getDropped());
+        System.out.println("Counters restored after drain: " + countersRestored + ", full for every type: "
+                + (lot.isFull(VehicleType.CAR) && lot.isFull(VehicleType.TRUCK) && lot.isFull(VehicleType.BIKE)));
+        if (doubleAllocations.get() != 0 || refill.size() != floors * spotsPerFloor || !countersRestored || !boardMatches) {
+            throw new AssertionError("Spot allocation is not exclusive");
+        }
+    }
+
+    private static Vehicle vehicle(String licenseNo, int kind) {
+        switch (kind) {
+            case 0:
+                return new Car(licenseNo);
+            case 1:
+                return new Bike(licenseNo);
+            default:
+                return new Truck(licenseNo);
+        }
+    }
+}
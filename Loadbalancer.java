@@ -128,22 +128,148 @@ Request is sent to the LoadBalancer and routed to a Server.
 
 
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// --------------------- ServerListener Interface ---------------------
+interface ServerListener {
+    default void onStatusChanged(Server server) {
+    }
+
+    default void onConnectionsChanged(Server server) {
+    }
+
+    // A connection was given back, so the server may have room again.
+    default void onConnectionReleased(Server server) {
+    }
+}
+
+// --------------------- Ewma Class ---------------------
+// Time-decayed exponentially weighted moving average. Updates are a CAS loop on
+// the double's bits, so recording never blocks a routing thread. The first
+// sample seeds the average instead of being blended with an arbitrary zero.
+class Ewma {
+    private static final long UNSEEDED = Double.doubleToRawLongBits(Double.NaN);
+
+    private final double decayNanos;
+    private final AtomicLong valueBits = new AtomicLong(UNSEEDED);
+    private volatile long lastUpdateNanos = System.nanoTime();
+
+    public Ewma(long decayMillis) {
+        this.decayNanos = TimeUnit.MILLISECONDS.toNanos(decayMillis);
+    }
+
+    // 0 until the first sample arrives.
+    public double get() {
+        long bits = valueBits.get();
+        return bits == UNSEEDED ? 0.0 : Double.longBitsToDouble(bits);
+    }
+
+    // Value as it would be after decaying towards zero since the last sample,
+    // so a server that stopped receiving traffic is eventually tried again.
+    public double getDecayed() {
+        long elapsed = Math.max(0, System.nanoTime() - lastUpdateNanos);
+        return get() * Math.exp(-elapsed / decayNanos);
+    }
+
+    public void update(double sample) {
+        update(sample, false);
+    }
+
+    // Peak EWMA: a sample above the average replaces it immediately, lower
+    // samples only pull it down gradually.
+    public void updatePeak(double sample) {
+        update(sample, true);
+    }
+
+    private void update(double sample, boolean peak) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(0, now - lastUpdateNanos);
+        lastUpdateNanos = now;
+        double weight = Math.exp(-elapsed / decayNanos);
+        while (true) {
+            long bits = valueBits.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = bits == UNSEEDED || (peak && sample > current)
+                    ? sample : current * weight + sample * (1 - weight);
+            if (valueBits.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+}
 
 // --------------------- Server Class ---------------------
 class Server {
+    private static final long EWMA_DECAY_MILLIS = 10_000;
+    // Bumped by every weight change on any server, so a table built from weights can
+    // tell it is stale with one read instead of rechecking every server.
+    private static final AtomicLong WEIGHT_VERSION = new AtomicLong();
+
     private String id;
     private String ipAddress;
-    private int connections;
-    private boolean active;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean active;
+    private volatile int weight;
+    private final Ewma latencyEwma = new Ewma(EWMA_DECAY_MILLIS);
+    private final Ewma peakLatencyEwma = new Ewma(EWMA_DECAY_MILLIS);
+    private final Ewma inFlightEwma = new Ewma(EWMA_DECAY_MILLIS);
+    private volatile ServerMetrics metrics;
+    private volatile ConcurrencyLimit concurrencyLimit;
+    private final List<ServerListener> listeners = new CopyOnWriteArrayList<>();
 
     public Server(String id, String ipAddress) {
+        this(id, ipAddress, 1);
+    }
+
+    public Server(String id, String ipAddress, int weight) {
         this.id = id;
         this.ipAddress = ipAddress;
-        this.connections = 0;
         this.active = true;
+        setWeight(weight);
     }
 
     public String getId() {
@@ -155,7 +281,7 @@ class Server {
     }
 
     public int getConnections() {
-        return connections;
+        return connections.get();
     }
 
     public boolean isActive() {
@@ -163,38 +289,311 @@ class Server {
     }
 
     public void setActive(boolean active) {
+        if (this.active == active) {
+            return;
+        }
         this.active = active;
+        for (ServerListener listener : listeners) {
+            listener.onStatusChanged(this);
+        }
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    static long weightVersion() {
+        return WEIGHT_VERSION.get();
+    }
+
+    // A weight change is announced like a status change, so balancers rebuild
+    // their snapshot and weighted algorithms their tables.
+    public void setWeight(int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Server weight must be positive: " + weight);
+        }
+        if (this.weight == weight) {
+            return;
+        }
+        this.weight = weight;
+        WEIGHT_VERSION.incrementAndGet();
+        for (ServerListener listener : listeners) {
+            listener.onStatusChanged(this);
+        }
+    }
+
+    public double getLatencyEwmaNanos() {
+        return latencyEwma.get();
+    }
+
+    public double getPeakLatencyEwmaNanos() {
+        return peakLatencyEwma.getDecayed();
+    }
+
+    public double getInFlightEwma() {
+        return inFlightEwma.get();
+    }
+
+    public void recordLatency(long latencyNanos) {
+        latencyEwma.update(latencyNanos);
+        peakLatencyEwma.updatePeak(latencyNanos);
+        ServerMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.recordRequest(latencyNanos);
+        }
+    }
+
+    public void recordError() {
+        ServerMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.recordError();
+        }
+        ConcurrencyLimit limit = concurrencyLimit;
+        if (limit != null) {
+            limit.onDropped();
+        }
+    }
+
+    // null removes the limit.
+    public void setConcurrencyLimit(ConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    public int getMaxInFlight() {
+        ConcurrencyLimit limit = concurrencyLimit;
+        return limit == null ? Integer.MAX_VALUE : limit.getLimit();
+    }
+
+    void attachMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void addListener(ServerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ServerListener listener) {
+        listeners.remove(listener);
+    }
+
+    public ServerConnection acquire() {
+        beginRequest();
+        return new ServerConnection(this, System.nanoTime());
+    }
+
+    // Like acquire(), but returns null instead of exceeding the concurrency limit.
+    public ServerConnection tryAcquire() {
+        return tryBeginRequest() ? new ServerConnection(this, System.nanoTime()) : null;
+    }
+
+    // Handle-free form of acquire() for the routing path; pair with endRequest().
+    void beginRequest() {
+        inFlightEwma.update(connections.incrementAndGet());
+        notifyConnectionsChanged();
+    }
+
+    boolean tryBeginRequest() {
+        int maxInFlight = getMaxInFlight();
+        while (true) {
+            int current = connections.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                inFlightEwma.update(current + 1);
+                notifyConnectionsChanged();
+                return true;
+            }
+        }
+    }
+
+    void endRequest(long acquiredAtNanos) {
+        release(System.nanoTime() - acquiredAtNanos);
+    }
+
+    // Gives the slot back without a latency sample, for an attempt that was
+    // cancelled rather than answered.
+    void abandonRequest() {
+        inFlightEwma.update(connections.decrementAndGet());
+        for (ServerListener listener : listeners) {
+            listener.onConnectionsChanged(this);
+            listener.onConnectionReleased(this);
+        }
+    }
+
+    private void release(long serviceTimeNanos) {
+        int inFlight = connections.decrementAndGet();
+        inFlightEwma.update(inFlight);
+        recordLatency(serviceTimeNanos);
+        ConcurrencyLimit limit = concurrencyLimit;
+        if (limit != null) {
+            limit.onSample(serviceTimeNanos, inFlight + 1);
+        }
+        for (ServerListener listener : listeners) {
+            listener.onConnectionsChanged(this);
+            listener.onConnectionReleased(this);
+        }
+    }
+
+    private void notifyConnectionsChanged() {
+        for (ServerListener listener : listeners) {
+            listener.onConnectionsChanged(this);
+        }
     }
 
     public void handleRequest() {
-        connections++;
-        System.out.println("Request handled by server: " + id);
+        beginRequest();
+        handleRequest(System.nanoTime());
+    }
+
+    public void handleRequest(ServerConnection connection) {
+        // Backend work is simulated; the connection is released straight away.
+        connection.close();
+    }
+
+    // Same as handleRequest(ServerConnection) for a slot taken with beginRequest().
+    void handleRequest(long acquiredAtNanos) {
+        endRequest(acquiredAtNanos);
+    }
+}
+
+// --------------------- ServerConnection Class ---------------------
+// Handle for one in-flight request; closing it more than once releases only once.
+class ServerConnection implements AutoCloseable {
+    private static final AtomicIntegerFieldUpdater<ServerConnection> RELEASED =
+            AtomicIntegerFieldUpdater.newUpdater(ServerConnection.class, "released");
+
+    private final Server server;
+    private final long acquiredAtNanos;
+    private volatile int released;
+
+    ServerConnection(Server server, long acquiredAtNanos) {
+        this.server = server;
+        this.acquiredAtNanos = acquiredAtNanos;
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    @Override
+    public void close() {
+        if (RELEASED.compareAndSet(this, 0, 1)) {
+            server.endRequest(acquiredAtNanos);
+        }
+    }
+
+    // Releases without recording latency; for work that was cancelled.
+    void abandon() {
+        if (RELEASED.compareAndSet(this, 0, 1)) {
+            server.abandonRequest();
+        }
+    }
+}
+
+// --------------------- Request Class ---------------------
+class Request {
+    private final String id;
+    private final String routingKey;
+    private final Object data;
+
+    public Request(String id, String routingKey) {
+        this(id, routingKey, null);
+    }
+
+    public Request(String id, String routingKey, Object data) {
+        this.id = id;
+        this.routingKey = routingKey;
+        this.data = data;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public Object getRequestData() {
+        return data;
+    }
+}
+
+// --------------------- Response Class ---------------------
+class Response {
+    private final String requestId;
+    private final String serverId;
+    private final Object body;
+
+    public Response(String requestId, String serverId, Object body) {
+        this.requestId = requestId;
+        this.serverId = serverId;
+        this.body = body;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public Object getBody() {
+        return body;
     }
 }
 
 // --------------------- LoadBalancingAlgorithm Interface ---------------------
 interface LoadBalancingAlgorithm {
     Server selectServer(List<Server> servers);
+
+    // A LoadBalancer calls this with each new active snapshot before routing can
+    // see it, so tables built per snapshot are built here rather than by the
+    // first routing thread to notice the change.
+    default void onServersChanged(List<Server> servers) {
+    }
+
+    // Strategies that route by request content (e.g. affinity) override this.
+    default Server selectServer(List<Server> servers, Request request) {
+        return selectServer(servers);
+    }
 }
 
 // --------------------- RoundRobinAlgorithm Class ---------------------
+// Safe to share between routing threads: the cursor only ever moves forward
+// and is reduced modulo the current snapshot size.
 class RoundRobinAlgorithm implements LoadBalancingAlgorithm {
-    private int index = 0;
+    private final AtomicLong cursor = new AtomicLong();
 
     @Override
     public Server selectServer(List<Server> servers) {
-        if (servers.isEmpty()) {
+        int size = servers.size();
+        if (size == 0) {
             throw new IllegalStateException("No available servers.");
         }
-        
-        Server server = servers.get(index % servers.size());
-        index = (index + 1) % servers.size();
-        return server;
+
+        return servers.get((int) Long.remainderUnsigned(cursor.getAndIncrement(), size));
     }
 }
 
 // --------------------- LeastConnectionsAlgorithm Class ---------------------
-class LeastConnectionsAlgorithm implements LoadBalancingAlgorithm {
+// Keeps the servers of the current snapshot in an indexed 4-ary min-heap ordered
+// by open connections. The algorithm listens on the servers it indexes (and
+// stops listening when they leave the index), so it stays correct whether or
+// not a LoadBalancer drives it; each change only sets the server's bit in a
+// lock-free dirty set. Selection re-sifts the dirty servers and reads the root;
+// if another thread is already doing that, it reads the root without waiting.
+// A list with the same servers as the index is adopted without a rebuild.
+class LeastConnectionsAlgorithm implements LoadBalancingAlgorithm, ServerListener {
+    private static final int ARITY = 4;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Index index = new Index(List.of());
+    // The last list seen to hold exactly the indexed servers, so a caller that
+    // keeps passing the same list pays nothing for the check.
+    private volatile List<Server> lastSource = List.of();
 
     @Override
     public Server selectServer(List<Server> servers) {
@@ -202,78 +601,2319 @@ class LeastConnectionsAlgorithm implements LoadBalancingAlgorithm {
             throw new IllegalStateException("No available servers.");
         }
 
-        Server leastConnectedServer = servers.get(0);
-        for (Server server : servers) {
-            if (server.getConnections() < leastConnectedServer.getConnections()) {
-                leastConnectedServer = server;
+        Index current = index;
+        if (lastSource != servers) {
+            if (current.holds(servers)) {
+                lastSource = servers;
+            } else {
+                current = reindex(servers);
+            }
+        }
+        if (lock.tryLock()) {
+            try {
+                current.applyDirty();
+            } finally {
+                lock.unlock();
             }
         }
-        return leastConnectedServer;
+        return current.members[current.heap[0]];
     }
-}
 
-// --------------------- LoadBalancer Class ---------------------
-class LoadBalancer {
-    private List<Server> servers;
-    private LoadBalancingAlgorithm algorithm;
+    @Override
+    public void onServersChanged(List<Server> servers) {
+        if (!index.holds(servers)) {
+            reindex(servers);
+        }
+    }
 
-    public LoadBalancer(LoadBalancingAlgorithm algorithm) {
-        this.servers = new ArrayList<>();
-        this.algorithm = algorithm;
+    private Index reindex(List<Server> servers) {
+        lock.lock();
+        try {
+            Index current = index;
+            if (!current.holds(servers)) {
+                Index next = new Index(servers);
+                for (Server server : next.members) {
+                    if (!current.ordinals.containsKey(server)) {
+                        server.addListener(this);
+                    }
+                }
+                index = next;
+                for (Server server : current.members) {
+                    if (!next.ordinals.containsKey(server)) {
+                        server.removeListener(this);
+                    }
+                }
+                // Changes that raced with the registration are picked up on the first re-sift.
+                for (int i = 0; i < next.members.length; i++) {
+                    next.markDirty(i);
+                }
+                current = next;
+            }
+            lastSource = servers;
+            return current;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public void addServer(Server server) {
-        servers.add(server);
+    @Override
+    public void onConnectionsChanged(Server server) {
+        markDirty(server);
     }
 
-    public void removeServer(String serverId) {
-        servers.removeIf(server -> server.getId().equals(serverId));
+    // Weight changes reorder the weighted variant's heap.
+    @Override
+    public void onStatusChanged(Server server) {
+        markDirty(server);
     }
 
-    public void routeRequest() {
-        List<Server> activeServers = new ArrayList<>();
+    private void markDirty(Server server) {
+        Index current = index;
+        Integer ordinal = current.ordinals.get(server);
+        if (ordinal != null) {
+            current.markDirty(ordinal);
+        }
+    }
+
+    // Whether the server at ordinal a carries less load than the one at b.
+    boolean lighter(Index index, int a, int b) {
+        return index.loads[a] < index.loads[b];
+    }
+
+    // One snapshot's heap. Loads are cached per server and only refreshed for
+    // dirty servers under the lock, so the heap order always matches them.
+    class Index {
+        final Server[] members;
+        final Map<Server, Integer> ordinals;
+        final int[] heap;
+        final int[] positions;
+        final int[] loads;
+        final int[] weights;
+        private final AtomicLongArray dirty;
+
+        Index(List<Server> servers) {
+            int size = servers.size();
+            members = servers.toArray(new Server[0]);
+            ordinals = new IdentityHashMap<>(size);
+            heap = new int[size];
+            positions = new int[size];
+            loads = new int[size];
+            weights = new int[size];
+            dirty = new AtomicLongArray((size + 63) >>> 6);
+            for (int i = 0; i < size; i++) {
+                ordinals.put(members[i], i);
+                heap[i] = i;
+                positions[i] = i;
+                loads[i] = members[i].getConnections();
+                weights[i] = members[i].getWeight();
+            }
+            for (int i = (size - 2) / ARITY; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        boolean holds(List<Server> servers) {
+            if (servers.size() != members.length) {
+                return false;
+            }
+            for (int i = 0; i < members.length; i++) {
+                if (servers.get(i) != members[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void markDirty(int ordinal) {
+            int word = ordinal >>> 6;
+            long bit = 1L << ordinal;
+            long current;
+            while (((current = dirty.get(word)) & bit) == 0) {
+                if (dirty.compareAndSet(word, current, current | bit)) {
+                    return;
+                }
+            }
+        }
+
+        void applyDirty() {
+            for (int word = 0; word < dirty.length(); word++) {
+                if (dirty.get(word) == 0) {
+                    continue;
+                }
+                long bits = dirty.getAndSet(word, 0);
+                while (bits != 0) {
+                    int ordinal = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    loads[ordinal] = members[ordinal].getConnections();
+                    weights[ordinal] = members[ordinal].getWeight();
+                    int position = positions[ordinal];
+                    if (!siftUp(position)) {
+                        siftDown(position);
+                    }
+                }
+            }
+        }
+
+        private boolean siftUp(int position) {
+            int start = position;
+            while (position > 0) {
+                int parent = (position - 1) / ARITY;
+                if (!lighter(this, heap[position], heap[parent])) {
+                    break;
+                }
+                swap(position, parent);
+                position = parent;
+            }
+            return position != start;
+        }
+
+        private void siftDown(int position) {
+            int size = heap.length;
+            while (true) {
+                int first = position * ARITY + 1;
+                if (first >= size) {
+                    return;
+                }
+                int lightest = first;
+                int last = Math.min(first + ARITY, size);
+                for (int child = first + 1; child < last; child++) {
+                    if (lighter(this, heap[child], heap[lightest])) {
+                        lightest = child;
+                    }
+                }
+                if (!lighter(this, heap[lightest], heap[position])) {
+                    return;
+                }
+                swap(position, lightest);
+                position = lightest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int ordinalA = heap[a];
+            int ordinalB = heap[b];
+            heap[a] = ordinalB;
+            heap[b] = ordinalA;
+            positions[ordinalB] = a;
+            positions[ordinalA] = b;
+        }
+    }
+}
+
+// --------------------- SmoothWeightedRoundRobinAlgorithm Class ---------------------
+// nginx-style smooth weighted round robin: spreads a heavy server's turns
+// evenly instead of sending it a burst of consecutive requests. The sequence
+// repeats every sum-of-weights picks, so one period is played out into a table
+// and a pick is an atomic cursor step into it rather than a locked pass over
+// every server. Under a LoadBalancer the table is built when the balancer
+// publishes a snapshot, off the request path; used on its own it is rebuilt by
+// the first pick that sees a new list or a weight change.
+class SmoothWeightedRoundRobinAlgorithm implements LoadBalancingAlgorithm {
+    private static final int MAX_PERIOD = 1 << 16;
+
+    private final AtomicLong cursor = new AtomicLong();
+    private volatile Schedule schedule = new Schedule(List.of(), -1, new Server[0]);
+    // Set once a balancer announces snapshots. It announces weight changes too
+    // (as a new list), so picks then only compare list identity.
+    private volatile boolean announced;
+
+    @Override
+    public Server selectServer(List<Server> servers) {
+        if (servers.isEmpty()) {
+            throw new IllegalStateException("No available servers.");
+        }
+
+        Schedule current = schedule;
+        if (current.source != servers || !announced && current.weightVersion != Server.weightVersion()) {
+            current = rebuild(servers);
+        }
+        return current.turns[(int) Long.remainderUnsigned(cursor.getAndIncrement(), current.turns.length)];
+    }
+
+    @Override
+    public void onServersChanged(List<Server> servers) {
+        announced = true;
+        rebuild(servers);
+    }
+
+    private synchronized Schedule rebuild(List<Server> servers) {
+        long weightVersion = Server.weightVersion();
+        if (schedule.source == servers && schedule.weightVersion == weightVersion) {
+            return schedule;
+        }
+
+        int size = servers.size();
+        long totalWeight = 0;
         for (Server server : servers) {
-            if (server.isActive()) {
-                activeServers.add(server);
+            totalWeight += server.getWeight();
+        }
+        // Very large weight sums are scaled down so the table stays bounded.
+        long divisor = (totalWeight + MAX_PERIOD - 1) / MAX_PERIOD;
+        int[] weights = new int[size];
+        int period = 0;
+        for (int i = 0; i < size; i++) {
+            weights[i] = (int) Math.max(1, servers.get(i).getWeight() / divisor);
+            period += weights[i];
+        }
+
+        // The classic per-pick pass, run once per table slot.
+        long[] currentWeights = new long[size];
+        Server[] turns = new Server[period];
+        for (int t = 0; t < period; t++) {
+            int best = 0;
+            for (int i = 0; i < size; i++) {
+                currentWeights[i] += weights[i];
+                if (currentWeights[i] > currentWeights[best]) {
+                    best = i;
+                }
             }
+            currentWeights[best] -= period;
+            turns[t] = servers.get(best);
         }
+        schedule = new Schedule(servers, weightVersion, turns);
+        return schedule;
+    }
 
-        if (activeServers.isEmpty()) {
-            throw new IllegalStateException("No active servers available.");
+    private static class Schedule {
+        final List<Server> source;
+        final long weightVersion;
+        final Server[] turns;
+
+        Schedule(List<Server> source, long weightVersion, Server[] turns) {
+            this.source = source;
+            this.weightVersion = weightVersion;
+            this.turns = turns;
         }
+    }
+}
+
+// --------------------- WeightedLeastConnectionsAlgorithm Class ---------------------
+// Least connections over connections / weight, on the same heap and dirty-set
+// updates as LeastConnectionsAlgorithm instead of a scan per pick.
+class WeightedLeastConnectionsAlgorithm extends LeastConnectionsAlgorithm {
 
-        Server selectedServer = algorithm.selectServer(activeServers);
-        selectedServer.handleRequest();
+    @Override
+    boolean lighter(Index index, int a, int b) {
+        return (long) index.loads[a] * index.weights[b] < (long) index.loads[b] * index.weights[a];
     }
 }
 
-// --------------------- Main Class ---------------------
-public class LoadBalancerDemo {
-    public static void main(String[] args) {
-        Server server1 = new Server("1", "192.168.1.1");
-        Server server2 = new Server("2", "192.168.1.2");
-        Server server3 = new Server("3", "192.168.1.3");
+// --------------------- PowerOfTwoChoicesAlgorithm Class ---------------------
+// Samples two distinct servers at random and keeps the one with the lower
+// weighted load, so selection is O(1) regardless of pool size.
+class PowerOfTwoChoicesAlgorithm implements LoadBalancingAlgorithm {
 
-        LoadBalancer loadBalancer = new LoadBalancer(new RoundRobinAlgorithm());
-        loadBalancer.addServer(server1);
-        loadBalancer.addServer(server2);
-        loadBalancer.addServer(server3);
+    @Override
+    public Server selectServer(List<Server> servers) {
+        int size = servers.size();
+        if (size == 0) {
+            throw new IllegalStateException("No available servers.");
+        }
+        if (size == 1) {
+            return servers.get(0);
+        }
 
-        // Simulate requests
-        for (int i = 0; i < 10; i++) {
-            loadBalancer.routeRequest();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Server a = servers.get(first);
+        Server b = servers.get(second);
+        return WeightedLoad.isLighter(b, a) ? b : a;
+    }
+}
+
+// --------------------- PeakEwmaAlgorithm Class ---------------------
+// Finagle-style: power of two choices over predicted latency, i.e. the peak
+// latency EWMA scaled by the requests already in flight on that server.
+class PeakEwmaAlgorithm implements LoadBalancingAlgorithm {
+
+    @Override
+    public Server selectServer(List<Server> servers) {
+        int size = servers.size();
+        if (size == 0) {
+            throw new IllegalStateException("No available servers.");
+        }
+        if (size == 1) {
+            return servers.get(0);
         }
 
-        System.out.println("\nSwitching to Least Connections Algorithm\n");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Server a = servers.get(first);
+        Server b = servers.get(second);
+        return cost(b) < cost(a) ? b : a;
+    }
 
-        LoadBalancer leastConnectionLoadBalancer = new LoadBalancer(new LeastConnectionsAlgorithm());
-        leastConnectionLoadBalancer.addServer(server1);
-        leastConnectionLoadBalancer.addServer(server2);
-        leastConnectionLoadBalancer.addServer(server3);
+    private static double cost(Server server) {
+        double latency = server.getPeakLatencyEwmaNanos();
+        int inFlight = server.getConnections();
+        // No latency observed yet: spread by in-flight count alone.
+        double cost = latency == 0 ? inFlight : latency * (inFlight + 1);
+        return cost / server.getWeight();
+    }
+}
 
-        // Simulate requests
-        for (int i = 0; i < 10; i++) {
-            leastConnectionLoadBalancer.routeRequest();
+// --------------------- WeightedLoad Helper ---------------------
+final class WeightedLoad {
+    private WeightedLoad() {
+    }
+
+    // connections / weight compared by cross-multiplying to stay in integers
+    static boolean isLighter(Server candidate, Server current) {
+        long candidateLoad = (long) candidate.getConnections() * current.getWeight();
+        long currentLoad = (long) current.getConnections() * candidate.getWeight();
+        return candidateLoad < currentLoad;
+    }
+}
+
+// --------------------- KeyHash Helper ---------------------
+final class KeyHash {
+    private KeyHash() {
+    }
+
+    // FNV-1a over the chars followed by the murmur3 finalizer; allocation-free.
+    static long hash(CharSequence key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    static long routingHash(Request request) {
+        if (request == null || request.getRoutingKey() == null) {
+            return ThreadLocalRandom.current().nextLong();
         }
+        return hash(request.getRoutingKey());
+    }
+}
+
+// --------------------- ConsistentHashAlgorithm Class ---------------------
+// Ring hash with virtual nodes (replicas * weight points per server). The ring
+// is rebuilt only when the active snapshot or a weight changes, ahead of routing
+// when a LoadBalancer announces it; lookup is a binary search.
+class ConsistentHashAlgorithm implements LoadBalancingAlgorithm {
+    private final int replicas;
+    private volatile Ring ring = new Ring(List.of(), -1, new long[0], new Server[0]);
+    private volatile boolean announced;
+
+    public ConsistentHashAlgorithm(int replicas) {
+        if (replicas <= 0) {
+            throw new IllegalArgumentException("Replicas must be positive: " + replicas);
+        }
+        this.replicas = replicas;
+    }
+
+    @Override
+    public Server selectServer(List<Server> servers) {
+        return selectServer(servers, null);
+    }
+
+    @Override
+    public Server selectServer(List<Server> servers, Request request) {
+        if (servers.isEmpty()) {
+            throw new IllegalStateException("No available servers.");
+        }
+
+        Ring current = ring;
+        if (current.source != servers || !announced && current.weightVersion != Server.weightVersion()) {
+            current = rebuild(servers);
+        }
+        int index = Arrays.binarySearch(current.points, KeyHash.routingHash(request));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return current.owners[index == current.points.length ? 0 : index];
+    }
+
+    @Override
+    public void onServersChanged(List<Server> servers) {
+        announced = true;
+        rebuild(servers);
+    }
+
+    private synchronized Ring rebuild(List<Server> servers) {
+        long weightVersion = Server.weightVersion();
+        if (ring.source == servers && ring.weightVersion == weightVersion) {
+            return ring;
+        }
+
+        TreeMap<Long, Server> points = new TreeMap<>();
+        for (Server server : servers) {
+            int virtualNodes = replicas * server.getWeight();
+            for (int i = 0; i < virtualNodes; i++) {
+                points.putIfAbsent(KeyHash.hash(server.getId() + "#" + i), server);
+            }
+        }
+
+        long[] hashes = new long[points.size()];
+        Server[] owners = new Server[points.size()];
+        int i = 0;
+        for (Map.Entry<Long, Server> point : points.entrySet()) {
+            hashes[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+        ring = new Ring(servers, weightVersion, hashes, owners);
+        return ring;
+    }
+
+    private static class Ring {
+        final List<Server> source;
+        final long weightVersion;
+        final long[] points;
+        final Server[] owners;
+
+        Ring(List<Server> source, long weightVersion, long[] points, Server[] owners) {
+            this.source = source;
+            this.weightVersion = weightVersion;
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+}
+
+// --------------------- MaglevHashAlgorithm Class ---------------------
+// Maglev lookup table: each server fills the table from its own permutation
+// of slots, giving an even spread, minimal remapping and O(1) lookup.
+class MaglevHashAlgorithm implements LoadBalancingAlgorithm {
+    private final int tableSize;
+    private volatile Table table = new Table(List.of(), new Server[0]);
+
+    public MaglevHashAlgorithm() {
+        this(65_537);
+    }
+
+    public MaglevHashAlgorithm(int tableSize) {
+        if (!BigInteger.valueOf(tableSize).isProbablePrime(30)) {
+            throw new IllegalArgumentException("Maglev table size must be prime: " + tableSize);
+        }
+        this.tableSize = tableSize;
+    }
+
+    @Override
+    public Server selectServer(List<Server> servers) {
+        return selectServer(servers, null);
+    }
+
+    @Override
+    public Server selectServer(List<Server> servers, Request request) {
+        if (servers.isEmpty()) {
+            throw new IllegalStateException("No available servers.");
+        }
+
+        Table current = table;
+        if (current.source != servers) {
+            current = rebuild(servers);
+        }
+        return current.slots[(int) Long.remainderUnsigned(KeyHash.routingHash(request), tableSize)];
+    }
+
+    @Override
+    public void onServersChanged(List<Server> servers) {
+        rebuild(servers);
+    }
+
+    private synchronized Table rebuild(List<Server> servers) {
+        if (table.source == servers) {
+            return table;
+        }
+        if (servers.size() > tableSize) {
+            throw new IllegalStateException("Maglev table size " + tableSize
+                    + " is smaller than the server count " + servers.size());
+        }
+
+        int size = servers.size();
+        long[] offsets = new long[size];
+        long[] skips = new long[size];
+        long[] next = new long[size];
+        for (int i = 0; i < size; i++) {
+            String id = servers.get(i).getId();
+            offsets[i] = Long.remainderUnsigned(KeyHash.hash(id), tableSize);
+            skips[i] = Long.remainderUnsigned(KeyHash.hash(id + "#skip"), tableSize - 1) + 1;
+        }
+
+        Server[] slots = new Server[tableSize];
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < size; i++) {
+                int slot = (int) ((offsets[i] + next[i] * skips[i]) % tableSize);
+                while (slots[slot] != null) {
+                    next[i]++;
+                    slot = (int) ((offsets[i] + next[i] * skips[i]) % tableSize);
+                }
+                slots[slot] = servers.get(i);
+                next[i]++;
+                if (++filled == tableSize) {
+                    table = new Table(servers, slots);
+                    return table;
+                }
+            }
+        }
+    }
+
+    private static class Table {
+        final List<Server> source;
+        final Server[] slots;
+
+        Table(List<Server> source, Server[] slots) {
+            this.source = source;
+            this.slots = slots;
+        }
+    }
+}
+
+// --------------------- HealthProbe Interface ---------------------
+// A probe returns normally when the server is healthy; any exception is a failure.
+interface HealthProbe {
+    void probe(Server server) throws Exception;
+}
+
+// --------------------- FakeHealthProbe Class ---------------------
+// Local probe for tests and demos: servers are healthy unless marked failing.
+class FakeHealthProbe implements HealthProbe {
+    private final Set<String> failingServers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> latencyMillis = new ConcurrentHashMap<>();
+
+    public void fail(String serverId) {
+        failingServers.add(serverId);
+    }
+
+    public void recover(String serverId) {
+        failingServers.remove(serverId);
+    }
+
+    public void setLatency(String serverId, long millis) {
+        latencyMillis.put(serverId, millis);
+    }
+
+    @Override
+    public void probe(Server server) throws Exception {
+        Long latency = latencyMillis.get(server.getId());
+        if (latency != null) {
+            Thread.sleep(latency);
+        }
+        if (failingServers.contains(server.getId())) {
+            throw new IOException("Probe failed for server: " + server.getId());
+        }
+    }
+}
+
+// --------------------- OutlierDetector Class ---------------------
+// Ejects a server after N consecutive failures (a response slower than the
+// latency threshold counts as a failure). Each repeated ejection doubles the
+// time before the server may be readmitted, up to maxEjectionMillis. While a
+// HealthChecker drives the detector, a successful probe readmits the server;
+// otherwise it is readmitted when its ejection time runs out.
+class OutlierDetector {
+    private final int maxConsecutiveFailures;
+    private final long latencyThresholdNanos;
+    private final long baseEjectionNanos;
+    private final long maxEjectionNanos;
+    private final Map<Server, OutlierState> states = new ConcurrentHashMap<>();
+    private volatile boolean activelyProbed;
+
+    public OutlierDetector(int maxConsecutiveFailures, long latencyThresholdMillis,
+                           long baseEjectionMillis, long maxEjectionMillis) {
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.baseEjectionNanos = TimeUnit.MILLISECONDS.toNanos(baseEjectionMillis);
+        this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(maxEjectionMillis);
+    }
+
+    public void recordSuccess(Server server, long latencyNanos) {
+        if (latencyNanos > latencyThresholdNanos) {
+            recordFailure(server);
+            return;
+        }
+        stateOf(server).consecutiveFailures.set(0);
+    }
+
+    public void recordFailure(Server server) {
+        OutlierState state = stateOf(server);
+        if (state.consecutiveFailures.incrementAndGet() >= maxConsecutiveFailures) {
+            eject(server, state);
+        }
+    }
+
+    public boolean isEjected(Server server) {
+        OutlierState state = states.get(server);
+        return state != null && state.ejectedUntilNanos != 0;
+    }
+
+    // Called after a successful active probe. Returns true if the server is
+    // (now) eligible for traffic.
+    public boolean tryReadmit(Server server) {
+        OutlierState state = stateOf(server);
+        long now = System.nanoTime();
+        synchronized (state) {
+            if (state.ejectedUntilNanos == 0) {
+                if (state.ejections > 0 && now - state.lastEjectedAtNanos > maxEjectionNanos) {
+                    state.ejections = 0;
+                }
+                return true;
+            }
+            if (now - state.ejectedUntilNanos < 0) {
+                return false;
+            }
+            state.ejectedUntilNanos = 0;
+            state.consecutiveFailures.set(0);
+        }
+        server.setActive(true);
+        return true;
+    }
+
+    // Called by HealthChecker when it starts and stops. When probing stops,
+    // servers still ejected fall back to timed readmission.
+    void setActivelyProbed(boolean activelyProbed) {
+        this.activelyProbed = activelyProbed;
+        if (activelyProbed) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<Server, OutlierState> entry : states.entrySet()) {
+            OutlierState state = entry.getValue();
+            long ejectionId;
+            long remaining;
+            synchronized (state) {
+                if (state.ejectedUntilNanos == 0) {
+                    continue;
+                }
+                ejectionId = state.ejectionId;
+                remaining = Math.max(0, state.ejectedUntilNanos - now);
+            }
+            scheduleReadmission(entry.getKey(), state, ejectionId, remaining);
+        }
+    }
+
+    private void eject(Server server, OutlierState state) {
+        long now = System.nanoTime();
+        long backoff;
+        long ejectionId;
+        synchronized (state) {
+            if (state.ejectedUntilNanos != 0) {
+                return;
+            }
+            int shift = Math.min(state.ejections++, 30);
+            backoff = Math.max(Math.min(baseEjectionNanos << shift, maxEjectionNanos), 1);
+            state.lastEjectedAtNanos = now;
+            state.ejectedUntilNanos = now + backoff;
+            ejectionId = ++state.ejectionId;
+        }
+        server.setActive(false);
+        scheduleReadmission(server, state, ejectionId, backoff);
+    }
+
+    private void scheduleReadmission(Server server, OutlierState state, long ejectionId, long delayNanos) {
+        CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS)
+                .execute(() -> readmitAfterBackoff(server, state, ejectionId));
+    }
+
+    private void readmitAfterBackoff(Server server, OutlierState state, long ejectionId) {
+        if (activelyProbed) {
+            return;
+        }
+        synchronized (state) {
+            if (state.ejectionId != ejectionId || state.ejectedUntilNanos == 0) {
+                return;
+            }
+            state.ejectedUntilNanos = 0;
+            state.consecutiveFailures.set(0);
+        }
+        server.setActive(true);
+    }
+
+    private OutlierState stateOf(Server server) {
+        return states.computeIfAbsent(server, s -> new OutlierState());
+    }
+
+    private static class OutlierState {
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        int ejections;
+        long ejectionId;
+        long lastEjectedAtNanos;
+        long ejectedUntilNanos;
+    }
+}
+
+// --------------------- HealthChecker Class ---------------------
+// Every checkInterval, probes all servers in parallel on virtual threads and
+// feeds the results to the OutlierDetector, which flips Server.setActive and
+// therefore the load balancer's routing snapshot. Each probe is numbered per
+// server; either its own result or the timeout settles it by advancing that
+// number, so a probe that finishes after timing out is ignored.
+class HealthChecker implements AutoCloseable {
+    private final HealthProbe probe;
+    private final long checkIntervalMillis;
+    private final long probeTimeoutMillis;
+    private final OutlierDetector outlierDetector;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService probeExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<Server, AtomicLong> probeGenerations = new ConcurrentHashMap<>();
+
+    public HealthChecker(HealthProbe probe, long checkIntervalMillis, long probeTimeoutMillis,
+                         OutlierDetector outlierDetector) {
+        this.probe = probe;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.probeTimeoutMillis = probeTimeoutMillis;
+        this.outlierDetector = outlierDetector;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "health-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start(LoadBalancer loadBalancer) {
+        outlierDetector.setActivelyProbed(true);
+        scheduler.scheduleWithFixedDelay(() -> performHealthCheck(loadBalancer.getServers()),
+                0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void performHealthCheck(List<Server> servers) {
+        List<Future<?>> probes = new ArrayList<>(servers.size());
+        long[] generations = new long[servers.size()];
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            AtomicLong generation = generationOf(server);
+            long current = generation.incrementAndGet();
+            generations[i] = current;
+            probes.add(probeExecutor.submit(() -> checkServer(server, generation, current)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(probeTimeoutMillis);
+        for (int i = 0; i < probes.size(); i++) {
+            Future<?> result = probes.get(i);
+            try {
+                result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                result.cancel(true);
+                settleAsFailed(servers.get(i), generations[i]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                settleAsFailed(servers.get(i), generations[i]);
+            }
+        }
+    }
+
+    private void settleAsFailed(Server server, long generation) {
+        if (generationOf(server).compareAndSet(generation, generation + 1)) {
+            outlierDetector.recordFailure(server);
+        }
+    }
+
+    private void checkServer(Server server, AtomicLong generation, long current) {
+        long start = System.nanoTime();
+        try {
+            probe.probe(server);
+        } catch (InterruptedException e) {
+            // Timed out; performHealthCheck records the failure.
+            return;
+        } catch (Exception e) {
+            if (generation.compareAndSet(current, current + 1)) {
+                outlierDetector.recordFailure(server);
+            }
+            return;
+        }
+        if (!generation.compareAndSet(current, current + 1)) {
+            // Already settled as a timeout (or superseded by a newer round).
+            return;
+        }
+        outlierDetector.recordSuccess(server, System.nanoTime() - start);
+        outlierDetector.tryReadmit(server);
+    }
+
+    private AtomicLong generationOf(Server server) {
+        return probeGenerations.computeIfAbsent(server, s -> new AtomicLong());
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        probeExecutor.shutdownNow();
+        outlierDetector.setActivelyProbed(false);
+    }
+}
+
+// --------------------- LatencyHistogram Class ---------------------
+// HdrHistogram-style log-linear buckets: values below 64 are exact, every
+// power of two above is split into 32 buckets (about 3% relative error).
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int LINEAR_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = LINEAR_BUCKETS >> 1;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    public long[] snapshotCounts() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100).
+    public static long valueAtPercentile(long[] snapshot, double percentile) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(snapshot.length - 1);
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift) - HALF_BUCKETS;
+        return LINEAR_BUCKETS + (magnitude - SUB_BUCKET_BITS) * HALF_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int offset = index - LINEAR_BUCKETS;
+        int shift = offset / HALF_BUCKETS + 1;
+        long lowerBound = (long) (HALF_BUCKETS + offset % HALF_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
+
+// --------------------- ServerMetrics Class ---------------------
+class ServerMetrics {
+    private final Server server;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    void recordRequest(long latencyNanos) {
+        requests.increment();
+        latency.record(latencyNanos);
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    ServerMetricsSnapshot snapshot() {
+        long[] counts = latency.snapshotCounts();
+        return new ServerMetricsSnapshot(server.getId(), requests.sum(), errors.sum(),
+                server.getConnections(), server.getMaxInFlight(), server.getLatencyEwmaNanos(),
+                LatencyHistogram.valueAtPercentile(counts, 50),
+                LatencyHistogram.valueAtPercentile(counts, 99),
+                LatencyHistogram.valueAtPercentile(counts, 99.9));
+    }
+}
+
+// --------------------- ServerMetricsSnapshot Class ---------------------
+class ServerMetricsSnapshot {
+    private final String serverId;
+    private final long requests;
+    private final long errors;
+    private final int inFlight;
+    private final int maxInFlight;
+    private final double latencyEwmaNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+
+    ServerMetricsSnapshot(String serverId, long requests, long errors, int inFlight, int maxInFlight,
+                          double latencyEwmaNanos, long p50Nanos, long p99Nanos, long p999Nanos) {
+        this.serverId = serverId;
+        this.requests = requests;
+        this.errors = errors;
+        this.inFlight = inFlight;
+        this.maxInFlight = maxInFlight;
+        this.latencyEwmaNanos = latencyEwmaNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    // Integer.MAX_VALUE when the server has no concurrency limit.
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public double getLatencyEwmaNanos() {
+        return latencyEwmaNanos;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+        return p999Nanos;
+    }
+}
+
+// --------------------- MetricsRegistry Class ---------------------
+// Opt-in: only servers registered here pay for counters and histograms.
+class MetricsRegistry {
+    private final Map<String, ServerMetrics> metricsByServer = new ConcurrentHashMap<>();
+    private final Map<String, AdmissionController> admissionControllers = new ConcurrentHashMap<>();
+
+    public void register(Server server) {
+        server.attachMetrics(metricsByServer.computeIfAbsent(server.getId(), id -> new ServerMetrics(server)));
+    }
+
+    public void register(LoadBalancer loadBalancer) {
+        for (Server server : loadBalancer.getServers()) {
+            register(server);
+        }
+    }
+
+    public void register(String loadBalancerName, AdmissionController admissionController) {
+        admissionControllers.put(loadBalancerName, admissionController);
+    }
+
+    public List<ServerMetricsSnapshot> snapshot() {
+        List<ServerMetricsSnapshot> snapshots = new ArrayList<>();
+        for (ServerMetrics metrics : metricsByServer.values()) {
+            snapshots.add(metrics.snapshot());
+        }
+        snapshots.sort((a, b) -> a.getServerId().compareTo(b.getServerId()));
+        return snapshots;
+    }
+
+    // Prometheus text exposition format.
+    public String exportText() {
+        StringBuilder text = new StringBuilder();
+        for (ServerMetricsSnapshot server : snapshot()) {
+            String label = "{server=\"" + server.getServerId() + "\"";
+            text.append("lb_server_requests_total").append(label).append("} ").append(server.getRequests()).append('\n');
+            text.append("lb_server_errors_total").append(label).append("} ").append(server.getErrors()).append('\n');
+            text.append("lb_server_in_flight").append(label).append("} ").append(server.getInFlight()).append('\n');
+            if (server.getMaxInFlight() != Integer.MAX_VALUE) {
+                text.append("lb_server_concurrency_limit").append(label).append("} ")
+                        .append(server.getMaxInFlight()).append('\n');
+            }
+            text.append("lb_server_latency_ewma_nanos").append(label).append("} ")
+                    .append((long) server.getLatencyEwmaNanos()).append('\n');
+            text.append("lb_server_latency_nanos").append(label).append(",quantile=\"0.5\"} ")
+                    .append(server.getP50Nanos()).append('\n');
+            text.append("lb_server_latency_nanos").append(label).append(",quantile=\"0.99\"} ")
+                    .append(server.getP99Nanos()).append('\n');
+            text.append("lb_server_latency_nanos").append(label).append(",quantile=\"0.999\"} ")
+                    .append(server.getP999Nanos()).append('\n');
+        }
+        for (Map.Entry<String, AdmissionController> entry : admissionControllers.entrySet()) {
+            String label = "{lb=\"" + entry.getKey() + "\"} ";
+            AdmissionController admission = entry.getValue();
+            text.append("lb_admission_queue_depth").append(label).append(admission.getQueueDepth()).append('\n');
+            text.append("lb_admission_queued_total").append(label).append(admission.getQueuedCount()).append('\n');
+            text.append("lb_admission_shed_total").append(label).append(admission.getShedCount()).append('\n');
+        }
+        return text.toString();
+    }
+}
+
+// --------------------- Logger Class ---------------------
+// Asynchronous, sampled logger: routing threads only enqueue (dropping when
+// the queue is full) and a single background thread writes to System.out.
+class Logger implements AutoCloseable {
+    private final int sampleEvery;
+    private final BlockingQueue<String> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public Logger(int sampleEvery) {
+        this(sampleEvery, 8192);
+    }
+
+    public Logger(int sampleEvery, int capacity) {
+        if (sampleEvery <= 0) {
+            throw new IllegalArgumentException("sampleEvery must be positive: " + sampleEvery);
+        }
+        this.sampleEvery = sampleEvery;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::drain, "lb-logger");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Check this before building a message so unsampled requests allocate nothing.
+    public boolean shouldSample() {
+        return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    public void log(String message) {
+        if (closed || !queue.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                String message = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    System.out.println(message);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// --------------------- ConcurrencyLimit Interface ---------------------
+// Maximum in-flight requests for one server, fed with every completed request.
+interface ConcurrencyLimit {
+    int getLimit();
+
+    void onSample(long rttNanos, int inFlight);
+
+    // A request failed or timed out.
+    void onDropped();
+}
+
+// --------------------- FixedLimit Class ---------------------
+class FixedLimit implements ConcurrencyLimit {
+    private final int limit;
+
+    public FixedLimit(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long rttNanos, int inFlight) {
+    }
+
+    @Override
+    public void onDropped() {
+    }
+}
+
+// --------------------- AimdLimit Class ---------------------
+// Additive increase while the limit is being used, multiplicative decrease on
+// a drop or a response slower than the timeout.
+class AimdLimit implements ConcurrencyLimit {
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long timeoutNanos;
+    private final AtomicInteger limit;
+
+    public AimdLimit(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long timeoutMillis) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.limit = new AtomicInteger(initialLimit);
+    }
+
+    @Override
+    public int getLimit() {
+        return limit.get();
+    }
+
+    @Override
+    public void onSample(long rttNanos, int inFlight) {
+        if (rttNanos > timeoutNanos) {
+            onDropped();
+            return;
+        }
+        limit.updateAndGet(current -> inFlight * 2 >= current ? Math.min(maxLimit, current + 1) : current);
+    }
+
+    @Override
+    public void onDropped() {
+        limit.updateAndGet(current -> Math.max(minLimit, (int) (current * backoffRatio)));
+    }
+}
+
+// --------------------- VegasLimit Class ---------------------
+// TCP Vegas-style: estimates the queue building up at the server from how far
+// the current RTT exceeds the no-load RTT, and keeps it between alpha and beta.
+class VegasLimit implements ConcurrencyLimit {
+    private static final int PROBE_INTERVAL_SAMPLES = 1_000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+    private long rttNoLoadNanos;
+    private int samplesSinceProbe;
+
+    public VegasLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized void onSample(long rttNanos, int inFlight) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        // Periodically forget the minimum so a permanently faster path is not required.
+        if (++samplesSinceProbe >= PROBE_INTERVAL_SAMPLES) {
+            samplesSinceProbe = 0;
+            rttNoLoadNanos = 0;
+        }
+        if (rttNoLoadNanos == 0 || rttNanos < rttNoLoadNanos) {
+            rttNoLoadNanos = rttNanos;
+            return;
+        }
+        int current = limit;
+        if (inFlight * 2 < current) {
+            return;
+        }
+
+        double queueSize = current * (1 - (double) rttNoLoadNanos / rttNanos);
+        int step = Math.max(1, (int) Math.log10(current));
+        if (queueSize <= 3 * step) {
+            limit = Math.min(maxLimit, current + step);
+        } else if (queueSize >= 6 * step) {
+            limit = Math.max(minLimit, current - step);
+        }
+    }
+
+    @Override
+    public synchronized void onDropped() {
+        limit = Math.max(minLimit, limit / 2);
+    }
+}
+
+// --------------------- LoadSheddingException Class ---------------------
+// Fast rejection under overload. Extends IllegalStateException so existing
+// callers of routeRequest() keep catching it.
+class LoadSheddingException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    LoadSheddingException(String message) {
+        super(message);
+    }
+}
+
+// --------------------- ConnectionAttempt Interface ---------------------
+interface ConnectionAttempt {
+    // Takes an in-flight slot on a server (Server.tryBeginRequest) and returns
+    // that server, or null when every candidate is at its concurrency limit.
+    // avoid, if not null, is only used when it is the only active server.
+    Server tryAcquire(Request request, Server avoid);
+}
+
+// --------------------- AdmissionController Class ---------------------
+// When every server is at its limit, requests wait in a bounded FIFO queue until
+// a connection is released or their deadline passes; beyond the queue bound, or
+// at the deadline, they are shed immediately. A release unparks only the oldest
+// waiter, and every waiter passes the wake-up on when it leaves, so none is lost.
+// The async path never parks: admitAsync queues a future instead, and releases
+// hand freed slots to those futures in order (one thread drains at a time).
+class AdmissionController {
+    private final int maxQueueDepth;
+    private final long maxWaitNanos;
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+    private final Queue<AsyncWaiter> asyncWaiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger drainsRequested = new AtomicInteger();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LongAdder shedCount = new LongAdder();
+    private final LongAdder queuedCount = new LongAdder();
+
+    public AdmissionController(int maxQueueDepth, long maxWaitMillis) {
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    Server admit(ConnectionAttempt attempt, Request request, Server avoid) {
+        return admit(attempt, request, avoid, maxWaitNanos);
+    }
+
+    // maxWaitNanos: this request's own queueing budget.
+    Server admit(ConnectionAttempt attempt, Request request, Server avoid, long maxWaitNanos) {
+        Server server = attempt.tryAcquire(request, avoid);
+        if (server != null) {
+            return server;
+        }
+
+        if (queueDepth.incrementAndGet() > maxQueueDepth) {
+            queueDepth.decrementAndGet();
+            shedCount.increment();
+            throw new LoadSheddingException("Admission queue full (" + maxQueueDepth + " waiting).");
+        }
+        queuedCount.increment();
+        long deadline = System.nanoTime() + maxWaitNanos;
+        Thread self = Thread.currentThread();
+        waiters.add(self);
+        try {
+            while (true) {
+                server = attempt.tryAcquire(request, avoid);
+                if (server != null) {
+                    return server;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    shedCount.increment();
+                    throw new LoadSheddingException("No server capacity within the queueing deadline.");
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (self.isInterrupted()) {
+                    shedCount.increment();
+                    throw new LoadSheddingException("Interrupted while queued for admission.");
+                }
+            }
+        } finally {
+            waiters.remove(self);
+            queueDepth.decrementAndGet();
+            wakeOldest();
+        }
+    }
+
+    // Completes with a server whose slot is already taken, or exceptionally with
+    // LoadSheddingException; the calling thread never waits.
+    CompletableFuture<Server> admitAsync(ConnectionAttempt attempt, Request request, Server avoid) {
+        Server server;
+        try {
+            server = attempt.tryAcquire(request, avoid);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (server != null) {
+            return CompletableFuture.completedFuture(server);
+        }
+
+        if (queueDepth.incrementAndGet() > maxQueueDepth) {
+            queueDepth.decrementAndGet();
+            shedCount.increment();
+            return CompletableFuture.failedFuture(
+                    new LoadSheddingException("Admission queue full (" + maxQueueDepth + " waiting)."));
+        }
+        queuedCount.increment();
+        AsyncWaiter waiter = new AsyncWaiter(attempt, request, avoid);
+        asyncWaiters.add(waiter);
+        CompletableFuture.delayedExecutor(maxWaitNanos, TimeUnit.NANOSECONDS).execute(() -> {
+            if (waiter.admitted.completeExceptionally(
+                    new LoadSheddingException("No server capacity within the queueing deadline."))) {
+                asyncWaiters.remove(waiter);
+                queueDepth.decrementAndGet();
+                shedCount.increment();
+            }
+        });
+        // A release may have come between the failed attempt and the enqueue.
+        drainAsyncWaiters();
+        return waiter.admitted;
+    }
+
+    void onConnectionReleased() {
+        wakeOldest();
+        drainAsyncWaiters();
+    }
+
+    // Admits queued async requests oldest first while servers have room. A
+    // release that arrives mid-drain makes the draining thread go round again.
+    private void drainAsyncWaiters() {
+        if (drainsRequested.getAndIncrement() != 0) {
+            return;
+        }
+        int requested = 1;
+        do {
+            AsyncWaiter waiter;
+            while ((waiter = asyncWaiters.peek()) != null) {
+                if (waiter.admitted.isDone()) {
+                    asyncWaiters.remove(waiter); // shed at its deadline
+                    continue;
+                }
+                Server server;
+                try {
+                    server = waiter.attempt.tryAcquire(waiter.request, waiter.avoid);
+                } catch (RuntimeException e) {
+                    if (waiter.admitted.completeExceptionally(e)) {
+                        queueDepth.decrementAndGet();
+                    }
+                    asyncWaiters.remove(waiter);
+                    continue;
+                }
+                if (server == null) {
+                    break;
+                }
+                asyncWaiters.remove(waiter);
+                if (waiter.admitted.complete(server)) {
+                    queueDepth.decrementAndGet();
+                } else {
+                    server.abandonRequest(); // shed while we were acquiring
+                }
+            }
+            requested = drainsRequested.addAndGet(-requested);
+        } while (requested != 0);
+    }
+
+    private void wakeOldest() {
+        Thread oldest = waiters.peek();
+        if (oldest != null) {
+            LockSupport.unpark(oldest);
+        }
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getShedCount() {
+        return shedCount.sum();
+    }
+
+    public long getQueuedCount() {
+        return queuedCount.sum();
+    }
+
+    private static class AsyncWaiter {
+        final ConnectionAttempt attempt;
+        final Request request;
+        final Server avoid;
+        final CompletableFuture<Server> admitted = new CompletableFuture<>();
+
+        AsyncWaiter(ConnectionAttempt attempt, Request request, Server avoid) {
+            this.attempt = attempt;
+            this.request = request;
+            this.avoid = avoid;
+        }
+    }
+}
+
+// --------------------- BackendTransport Interface ---------------------
+interface BackendTransport {
+    CompletableFuture<Response> send(Server server, Request request);
+}
+
+// --------------------- InProcessTransport Class ---------------------
+// Fake transport for tests and demos: answers after a configurable per-server
+// delay, or fails for servers marked failing.
+class InProcessTransport implements BackendTransport {
+    private final Map<String, Long> latencyMillis = new ConcurrentHashMap<>();
+    private final Set<String> failingServers = ConcurrentHashMap.newKeySet();
+
+    public void setLatency(String serverId, long millis) {
+        latencyMillis.put(serverId, millis);
+    }
+
+    public void fail(String serverId) {
+        failingServers.add(serverId);
+    }
+
+    public void recover(String serverId) {
+        failingServers.remove(serverId);
+    }
+
+    @Override
+    public CompletableFuture<Response> send(Server server, Request request) {
+        long delay = latencyMillis.getOrDefault(server.getId(), 0L);
+        Executor executor = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+        return CompletableFuture.supplyAsync(() -> {
+            if (failingServers.contains(server.getId())) {
+                throw new CompletionException(new IOException("Backend failed: " + server.getId()));
+            }
+            return new Response(request.getId(), server.getId(), request.getRequestData());
+        }, executor);
+    }
+}
+
+// --------------------- RetryBudget Class ---------------------
+// Finagle-style budget: every request deposits retryRatio of a token, every
+// retry or hedge withdraws a whole one, so extra load stays a bounded fraction
+// of real traffic.
+class RetryBudget {
+    private static final long TOKEN = 1_000;
+
+    private final long depositPerRequest;
+    private final long maxBalance;
+    private final AtomicLong balance;
+
+    public RetryBudget(double retryRatio, int maxTokens) {
+        this.depositPerRequest = Math.round(retryRatio * TOKEN);
+        this.maxBalance = maxTokens * TOKEN;
+        this.balance = new AtomicLong(maxBalance);
+    }
+
+    void deposit() {
+        while (true) {
+            long current = balance.get();
+            long next = Math.min(maxBalance, current + depositPerRequest);
+            if (current == next || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    boolean tryWithdraw() {
+        while (true) {
+            long current = balance.get();
+            if (current < TOKEN) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - TOKEN)) {
+                return true;
+            }
+        }
+    }
+
+    public double getBalance() {
+        return (double) balance.get() / TOKEN;
+    }
+}
+
+// --------------------- AsyncRoutingPolicy Class ---------------------
+class AsyncRoutingPolicy {
+    private final long timeoutMillis;
+    private final int maxRetries;
+    private final boolean hedging;
+    private final long minHedgeDelayMillis;
+    private final RetryBudget retryBudget;
+
+    // Hedged requests go to a second server once the p95 latency (at least
+    // minHedgeDelayMillis) has passed without a response.
+    public AsyncRoutingPolicy(long timeoutMillis, int maxRetries, boolean hedging, long minHedgeDelayMillis,
+                              RetryBudget retryBudget) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetries = maxRetries;
+        this.hedging = hedging;
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+        this.retryBudget = retryBudget;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    public long getMinHedgeDelayMillis() {
+        return minHedgeDelayMillis;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+}
+
+// --------------------- LoadBalancer Class ---------------------
+// Routing reads an immutable snapshot of the active servers; the snapshot is
+// only rebuilt when membership or a server's status changes.
+class LoadBalancer implements ServerListener {
+    private final List<Server> servers;
+    private final LoadBalancingAlgorithm algorithm;
+    private volatile List<Server> activeServers = List.of();
+    private volatile OutlierDetector outlierDetector;
+    private volatile Logger logger;
+    private volatile AdmissionController admissionController;
+    private final ConnectionAttempt connectionAttempt = this::tryAcquireServer;
+    private volatile BackendTransport transport;
+    private volatile AsyncRoutingPolicy asyncPolicy;
+    private final LatencyHistogram asyncLatency = new LatencyHistogram();
+    private volatile long hedgeDelayNanos;
+    private volatile long hedgeDelayRefreshedAtNanos = System.nanoTime();
+
+    private static final long HEDGE_DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Queue for as long as the AdmissionController allows by default.
+    private static final long DEFAULT_MAX_WAIT = -1;
+
+    public LoadBalancer(LoadBalancingAlgorithm algorithm) {
+        this.servers = new ArrayList<>();
+        this.algorithm = algorithm;
+    }
+
+    public synchronized void addServer(Server server) {
+        servers.add(server);
+        server.addListener(this);
+        rebuildActiveServers();
+    }
+
+    public synchronized void removeServer(String serverId) {
+        servers.removeIf(server -> {
+            if (!server.getId().equals(serverId)) {
+                return false;
+            }
+            server.removeListener(this);
+            return true;
+        });
+        rebuildActiveServers();
+    }
+
+    public synchronized List<Server> getServers() {
+        return List.copyOf(servers);
+    }
+
+    // Enables passive outlier detection: failed or slow routed requests count
+    // towards ejecting the server that handled them.
+    public void setOutlierDetector(OutlierDetector outlierDetector) {
+        this.outlierDetector = outlierDetector;
+    }
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    // Enables per-server concurrency limits (Server.setConcurrencyLimit) with
+    // queueing and load shedding once every server is saturated.
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public void setTransport(BackendTransport transport, AsyncRoutingPolicy asyncPolicy) {
+        this.asyncPolicy = asyncPolicy;
+        this.transport = transport;
+    }
+
+    @Override
+    public void onStatusChanged(Server server) {
+        rebuildActiveServers();
+    }
+
+    @Override
+    public void onConnectionReleased(Server server) {
+        AdmissionController admission = admissionController;
+        if (admission != null) {
+            admission.onConnectionReleased();
+        }
+    }
+
+    private synchronized void rebuildActiveServers() {
+        List<Server> snapshot = new ArrayList<>();
+        for (Server server : servers) {
+            if (server.isActive()) {
+                snapshot.add(server);
+            }
+        }
+        List<Server> next = List.copyOf(snapshot);
+        if (!next.isEmpty()) {
+            try {
+                algorithm.onServersChanged(next);
+            } catch (RuntimeException e) {
+                // e.g. more servers than a Maglev table holds; selectServer reports it per request.
+            }
+        }
+        activeServers = next;
+    }
+
+    public void routeRequest() {
+        routeRequest(null);
+    }
+
+    // Takes the slot without a ServerConnection handle, so routing allocates
+    // nothing unless a log line is sampled or the request has to queue for
+    // admission.
+    public void routeRequest(Request request) {
+        routeRequest(request, DEFAULT_MAX_WAIT);
+    }
+
+    // maxWaitMillis: how long this request may queue for admission, instead of
+    // the AdmissionController's default.
+    public void routeRequest(Request request, long maxWaitMillis) {
+        Server selectedServer = acquireServer(request, null, maxWaitMillis);
+        long start = System.nanoTime();
+        OutlierDetector detector = outlierDetector;
+        try {
+            selectedServer.handleRequest(start);
+        } catch (RuntimeException e) {
+            selectedServer.recordError();
+            if (detector != null) {
+                detector.recordFailure(selectedServer);
+            }
+            throw e;
+        }
+        if (detector != null) {
+            detector.recordSuccess(selectedServer, System.nanoTime() - start);
+        }
+        logRequest(request, selectedServer);
+    }
+
+    private void logRequest(Request request, Server server) {
+        Logger currentLogger = logger;
+        if (currentLogger != null && currentLogger.shouldSample()) {
+            currentLogger.log(request == null
+                    ? "Request handled by server: " + server.getId()
+                    : "Request " + request.getId() + " handled by server: " + server.getId());
+        }
+    }
+
+    // For callers that hold the backend for the duration of their own work;
+    // release it by closing the returned handle (try-with-resources).
+    public ServerConnection acquireConnection() {
+        return acquireConnection(null);
+    }
+
+    public ServerConnection acquireConnection(Request request) {
+        return acquireConnection(request, DEFAULT_MAX_WAIT);
+    }
+
+    public ServerConnection acquireConnection(Request request, long maxWaitMillis) {
+        return acquireConnection(request, null, maxWaitMillis);
+    }
+
+    private ServerConnection acquireConnection(Request request, Server avoid, long maxWaitMillis) {
+        Server server = acquireServer(request, avoid, maxWaitMillis);
+        return new ServerConnection(server, System.nanoTime());
+    }
+
+    // Returns the chosen server with an in-flight slot already taken.
+    // avoid: a server that already failed or is slow for this request; skipped
+    // when another active server exists.
+    private Server acquireServer(Request request, Server avoid, long maxWaitMillis) {
+        AdmissionController admission = admissionController;
+        if (admission != null) {
+            return maxWaitMillis == DEFAULT_MAX_WAIT
+                    ? admission.admit(connectionAttempt, request, avoid)
+                    : admission.admit(connectionAttempt, request, avoid, TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
+        }
+        List<Server> snapshot = activeSnapshot();
+        Server selected = selectServer(snapshot, request);
+        if (selected == avoid && snapshot.size() > 1) {
+            selected = snapshot.get((snapshot.indexOf(selected) + 1) % snapshot.size());
+        }
+        selected.beginRequest();
+        return selected;
+    }
+
+    // Sends the request through the configured BackendTransport. Each attempt
+    // holds its server connection until it completes or times out; failures are
+    // retried on another server and slow attempts hedged, both only while the
+    // retry budget allows. Never blocks: under admission control an attempt
+    // that finds every server saturated waits in the queue as a future.
+    public CompletableFuture<Response> routeAsync(Request request) {
+        BackendTransport currentTransport = transport;
+        AsyncRoutingPolicy policy = asyncPolicy;
+        if (currentTransport == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No backend transport configured."));
+        }
+
+        policy.getRetryBudget().deposit();
+        AsyncCall call = new AsyncCall(request, currentTransport, policy);
+        sendAttempt(call, null);
+        if (policy.isHedging() && !call.result.isDone()) {
+            CompletableFuture.delayedExecutor(hedgeDelayNanos(policy), TimeUnit.NANOSECONDS)
+                    .execute(() -> hedge(call));
+        }
+        return call.result;
+    }
+
+    private void hedge(AsyncCall call) {
+        if (!call.result.isDone() && call.policy.getRetryBudget().tryWithdraw()) {
+            sendAttempt(call, call.lastServer);
+        }
+    }
+
+    // An attempt counts as outstanding from the moment it asks for admission, so
+    // one still queued keeps the call open while another attempt fails.
+    private void sendAttempt(AsyncCall call, Server avoid) {
+        call.outstanding.incrementAndGet();
+        acquireServerAsync(call.request, avoid).whenComplete((server, failure) -> {
+            if (failure != null) {
+                if (call.outstanding.decrementAndGet() == 0) {
+                    call.result.completeExceptionally(failure instanceof CompletionException
+                            && failure.getCause() != null ? failure.getCause() : failure);
+                }
+            } else if (call.result.isDone()) {
+                // Answered while this attempt was queued.
+                server.abandonRequest();
+                call.outstanding.decrementAndGet();
+            } else {
+                send(call, server);
+            }
+        });
+    }
+
+    // Like acquireServer, but queues for admission without blocking the caller,
+    // which may be a common-pool or delayed-executor thread.
+    private CompletableFuture<Server> acquireServerAsync(Request request, Server avoid) {
+        AdmissionController admission = admissionController;
+        if (admission != null) {
+            return admission.admitAsync(connectionAttempt, request, avoid);
+        }
+        try {
+            return CompletableFuture.completedFuture(acquireServer(request, avoid, DEFAULT_MAX_WAIT));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void send(AsyncCall call, Server server) {
+        ServerConnection connection = new ServerConnection(server, System.nanoTime());
+        call.lastServer = server;
+        long start = System.nanoTime();
+        CompletableFuture<Response> attempt;
+        try {
+            attempt = call.transport.send(server, call.request)
+                    .orTimeout(call.policy.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        call.attempts.add(attempt);
+        attempt.whenComplete((response, failure) -> {
+            // A hedge loser cancelled after the winner answered is not a latency sample.
+            if (failure instanceof CancellationException) {
+                connection.abandon();
+            } else {
+                connection.close();
+            }
+            onAttemptComplete(call, server, response, failure, System.nanoTime() - start);
+        });
+    }
+
+    private void onAttemptComplete(AsyncCall call, Server server, Response response, Throwable failure,
+                                   long latencyNanos) {
+        int remaining = call.outstanding.decrementAndGet();
+        OutlierDetector detector = outlierDetector;
+        if (failure == null) {
+            asyncLatency.record(latencyNanos);
+            if (detector != null) {
+                detector.recordSuccess(server, latencyNanos);
+            }
+            if (call.result.complete(response)) {
+                for (CompletableFuture<Response> attempt : call.attempts) {
+                    attempt.cancel(false);
+                }
+            }
+            return;
+        }
+        if (failure instanceof CancellationException) {
+            return;
+        }
+
+        server.recordError();
+        if (detector != null) {
+            detector.recordFailure(server);
+        }
+        if (call.result.isDone() || remaining > 0) {
+            return;
+        }
+        if (call.retries.getAndIncrement() < call.policy.getMaxRetries()
+                && call.policy.getRetryBudget().tryWithdraw()) {
+            sendAttempt(call, server);
+        } else {
+            call.result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure);
+        }
+    }
+
+    // p95 of observed async latency, recomputed at most once a second.
+    private long hedgeDelayNanos(AsyncRoutingPolicy policy) {
+        long now = System.nanoTime();
+        if (now - hedgeDelayRefreshedAtNanos > HEDGE_DELAY_REFRESH_NANOS) {
+            hedgeDelayRefreshedAtNanos = now;
+            hedgeDelayNanos = LatencyHistogram.valueAtPercentile(asyncLatency.snapshotCounts(), 95);
+        }
+        return Math.max(hedgeDelayNanos, TimeUnit.MILLISECONDS.toNanos(policy.getMinHedgeDelayMillis()));
+    }
+
+    private static class AsyncCall {
+        final Request request;
+        final BackendTransport transport;
+        final AsyncRoutingPolicy policy;
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        final Queue<CompletableFuture<Response>> attempts = new ConcurrentLinkedQueue<>();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        volatile Server lastServer;
+
+        AsyncCall(Request request, BackendTransport transport, AsyncRoutingPolicy policy) {
+            this.request = request;
+            this.transport = transport;
+            this.policy = policy;
+        }
+    }
+
+    // The algorithm's choice first; only if that server is saturated (or is
+    // the one to avoid), any other active server that still has room.
+    private Server tryAcquireServer(Request request, Server avoid) {
+        List<Server> snapshot = activeSnapshot();
+        Server selected = selectServer(snapshot, request);
+        if (snapshot.size() == 1) {
+            return selected.tryBeginRequest() ? selected : null;
+        }
+        if (selected != avoid && selected.tryBeginRequest()) {
+            return selected;
+        }
+        for (int i = 0; i < snapshot.size(); i++) {
+            Server server = snapshot.get(i);
+            if (server != selected && server != avoid && server.tryBeginRequest()) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private List<Server> activeSnapshot() {
+        List<Server> snapshot = activeServers;
+        if (snapshot.isEmpty()) {
+            throw new LoadSheddingException("No active servers available.");
+        }
+        return snapshot;
+    }
+
+    private Server selectServer(List<Server> snapshot, Request request) {
+        return request == null ? algorithm.selectServer(snapshot) : algorithm.selectServer(snapshot, request);
+    }
+}
+
+// --------------------- LoadBalancerBenchmark Class ---------------------
+// Throughput / average-time / allocation harness for the routing hot path,
+// run across 1, 8 and 64 threads and 3, 100 and 1,000 servers. Every case gets
+// its own servers and balancer, and every fork is a fresh JVM, so neither
+// server state nor JIT profiles carry over between cases. Results are the
+// mean +- stddev over all measured iterations of all forks.
+// Usage: java LoadBalancerBenchmark [forks] [iterations] [warmupMillis] [iterationMillis]
+// (forks = 0 measures in this JVM)
+class LoadBalancerBenchmark {
+    private static final int[] SERVER_COUNTS = {3, 100, 1_000};
+    private static final int[] THREAD_COUNTS = {1, 8, 64};
+
+    private static final String FORK_FLAG = "--fork";
+    private static final String RESULT_PREFIX = "RESULT\t";
+
+    private static final int WARMUP = 0;
+    private static final int MEASURE = 1;
+    private static final int STOP = 2;
+
+    private static volatile int phase;
+
+    private static final Map<String, Function<List<Server>, Supplier<Object>>> CASES = new LinkedHashMap<>();
+
+    static {
+        CASES.put("RoundRobinAlgorithm.selectServer", servers -> {
+            RoundRobinAlgorithm roundRobin = new RoundRobinAlgorithm();
+            return () -> roundRobin.selectServer(servers);
+        });
+        CASES.put("LeastConnections routeRequest", servers -> routing(new LeastConnectionsAlgorithm(), servers));
+        CASES.put("LoadBalancer.routeRequest", servers -> routing(new RoundRobinAlgorithm(), servers));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals(FORK_FLAG)) {
+            runAll(Integer.parseInt(args[1]), Long.parseLong(args[2]), Long.parseLong(args[3]), System.out::println);
+            return;
+        }
+        int forks = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        long warmupMillis = args.length > 2 ? Long.parseLong(args[2]) : 300;
+        long iterationMillis = args.length > 3 ? Long.parseLong(args[3]) : 300;
+
+        Map<String, List<double[]>> samples = new LinkedHashMap<>();
+        if (forks == 0) {
+            runAll(iterations, warmupMillis, iterationMillis, line -> collect(samples, line));
+        }
+        for (int fork = 0; fork < forks; fork++) {
+            Process process = new ProcessBuilder(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), LoadBalancerBenchmark.class.getName(),
+                    FORK_FLAG, String.valueOf(iterations), String.valueOf(warmupMillis), String.valueOf(iterationMillis))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    collect(samples, line);
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Fork " + fork + " exited with " + process.exitValue());
+            }
+        }
+
+        System.out.printf("%-34s %8s %8s %24s %18s %8s%n", "benchmark", "servers", "threads", "ops/s", "ns/op", "B/op");
+        for (Map.Entry<String, List<double[]>> entry : samples.entrySet()) {
+            String[] key = entry.getKey().split("\t");
+            List<double[]> runs = entry.getValue();
+            System.out.printf("%-34s %8s %8s %24s %18s %8.1f%n", key[0], key[1], key[2],
+                    meanAndStddev(runs, 0, "%.0f"), meanAndStddev(runs, 1, "%.1f"), mean(runs, 2));
+        }
+    }
+
+    private static void runAll(int iterations, long warmupMillis, long iterationMillis, Consumer<String> out)
+            throws InterruptedException {
+        for (int serverCount : SERVER_COUNTS) {
+            for (int threads : THREAD_COUNTS) {
+                for (Map.Entry<String, Function<List<Server>, Supplier<Object>>> benchmark : CASES.entrySet()) {
+                    Supplier<Object> operation = benchmark.getValue().apply(createServers(serverCount));
+                    for (int i = 0; i < iterations; i++) {
+                        double[] result = run(threads, i == 0 ? warmupMillis : 0, iterationMillis, operation);
+                        out.accept(RESULT_PREFIX + benchmark.getKey() + "\t" + serverCount + "\t" + threads
+                                + "\t" + result[0] + "\t" + result[1] + "\t" + result[2]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void collect(Map<String, List<double[]>> samples, String line) {
+        if (!line.startsWith(RESULT_PREFIX)) {
+            return;
+        }
+        String[] fields = line.substring(RESULT_PREFIX.length()).split("\t");
+        samples.computeIfAbsent(fields[0] + "\t" + fields[1] + "\t" + fields[2], k -> new ArrayList<>())
+                .add(new double[]{Double.parseDouble(fields[3]), Double.parseDouble(fields[4]),
+                        Double.parseDouble(fields[5])});
+    }
+
+    private static double mean(List<double[]> runs, int column) {
+        double sum = 0;
+        for (double[] run : runs) {
+            sum += run[column];
+        }
+        return sum / runs.size();
+    }
+
+    private static String meanAndStddev(List<double[]> runs, int column, String format) {
+        double mean = mean(runs, column);
+        double squares = 0;
+        for (double[] run : runs) {
+            squares += (run[column] - mean) * (run[column] - mean);
+        }
+        double stddev = runs.size() > 1 ? Math.sqrt(squares / (runs.size() - 1)) : 0;
+        return String.format(format, mean) + " +- " + String.format(format, stddev);
+    }
+
+    private static Supplier<Object> routing(LoadBalancingAlgorithm algorithm, List<Server> servers) {
+        LoadBalancer loadBalancer = new LoadBalancer(algorithm);
+        for (Server server : servers) {
+            loadBalancer.addServer(server);
+        }
+        return () -> {
+            loadBalancer.routeRequest();
+            return loadBalancer;
+        };
+    }
+
+    private static List<Server> createServers(int count) {
+        List<Server> servers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            servers.add(new Server(String.valueOf(i), "10.0." + (i / 256) + "." + (i % 256)));
+        }
+        return List.copyOf(servers);
+    }
+
+    // Returns {ops/s, ns/op, B/op} for one measured iteration.
+    private static double[] run(int threadCount, long warmupMillis, long measureMillis, Supplier<Object> operation)
+            throws InterruptedException {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LongAdder totalOps = new LongAdder();
+        LongAdder totalAllocatedBytes = new LongAdder();
+        LongAdder sink = new LongAdder();
+        CountDownLatch started = new CountDownLatch(threadCount);
+        // Held until every worker exists, so spinning workers don't starve the
+        // rest of thread start-up on small machines.
+        CountDownLatch go = new CountDownLatch(1);
+
+        phase = WARMUP;
+        Thread[] workers = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            workers[t] = new Thread(() -> {
+                started.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long nulls = 0;
+                while (phase == WARMUP) {
+                    if (operation.get() == null) {
+                        nulls++;
+                    }
+                }
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                long ops = 0;
+                while (phase == MEASURE) {
+                    if (operation.get() == null) {
+                        nulls++;
+                    }
+                    ops++;
+                }
+                totalAllocatedBytes.add(threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+                totalOps.add(ops);
+                sink.add(nulls);
+            });
+            workers[t].start();
+        }
+
+        started.await();
+        go.countDown();
+        Thread.sleep(warmupMillis);
+        long start = System.nanoTime();
+        phase = MEASURE;
+        Thread.sleep(measureMillis);
+        phase = STOP;
+        long elapsedNanos = System.nanoTime() - start;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long ops = Math.max(1, totalOps.sum());
+        return new double[]{ops * 1e9 / elapsedNanos, (double) elapsedNanos * threadCount / ops,
+                (double) totalAllocatedBytes.sum() / ops};
+    }
+}
+
+// --------------------- Main Class ---------------------
+public class LoadBalancerDemo {
+    public static void main(String[] args) throws InterruptedException {
+        Logger logger = new Logger(1);
+        MetricsRegistry metrics = new MetricsRegistry();
+
+        Server server1 = new Server("1", "192.168.1.1");
+        Server server2 = new Server("2", "192.168.1.2");
+        Server server3 = new Server("3", "192.168.1.3");
+
+        LoadBalancer loadBalancer = new LoadBalancer(new RoundRobinAlgorithm());
+        loadBalancer.setLogger(logger);
+        loadBalancer.addServer(server1);
+        loadBalancer.addServer(server2);
+        loadBalancer.addServer(server3);
+        metrics.register(loadBalancer);
+
+        // Simulate requests
+        for (int i = 0; i < 10; i++) {
+            loadBalancer.routeRequest();
+        }
+
+        logger.log("\nSwitching to Smooth Weighted Round Robin (weights 5, 1, 1)\n");
+
+        Server bigServer = new Server("4", "192.168.1.4", 5);
+        Server smallServer1 = new Server("5", "192.168.1.5", 1);
+        Server smallServer2 = new Server("6", "192.168.1.6", 1);
+
+        LoadBalancer weightedLoadBalancer = new LoadBalancer(new SmoothWeightedRoundRobinAlgorithm());
+        weightedLoadBalancer.setLogger(logger);
+        weightedLoadBalancer.addServer(bigServer);
+        weightedLoadBalancer.addServer(smallServer1);
+        weightedLoadBalancer.addServer(smallServer2);
+
+        for (int i = 0; i < 7; i++) {
+            weightedLoadBalancer.routeRequest();
+        }
+
+        logger.log("\nSwitching to Least Connections Algorithm\n");
+
+        LoadBalancer leastConnectionLoadBalancer = new LoadBalancer(new LeastConnectionsAlgorithm());
+        leastConnectionLoadBalancer.setLogger(logger);
+        leastConnectionLoadBalancer.addServer(server1);
+        leastConnectionLoadBalancer.addServer(server2);
+        leastConnectionLoadBalancer.addServer(server3);
+
+        // Simulate requests
+        for (int i = 0; i < 10; i++) {
+            leastConnectionLoadBalancer.routeRequest();
+        }
+
+        // Hold connections open so the least-loaded server changes between picks
+        try (ServerConnection first = leastConnectionLoadBalancer.acquireConnection();
+             ServerConnection second = leastConnectionLoadBalancer.acquireConnection()) {
+            logger.log("Holding connections on servers: "
+                    + first.getServer().getId() + ", " + second.getServer().getId());
+            leastConnectionLoadBalancer.routeRequest();
+        }
+
+        logger.log("\nPeak EWMA: server 3 degrades to 50ms responses\n");
+
+        LoadBalancer latencyAwareLoadBalancer = new LoadBalancer(new PeakEwmaAlgorithm());
+        latencyAwareLoadBalancer.setLogger(logger);
+        latencyAwareLoadBalancer.addServer(server1);
+        latencyAwareLoadBalancer.addServer(server2);
+        latencyAwareLoadBalancer.addServer(server3);
+        server3.recordLatency(TimeUnit.MILLISECONDS.toNanos(50));
+        for (int i = 0; i < 6; i++) {
+            latencyAwareLoadBalancer.routeRequest();
+        }
+
+        logger.log("\nSticky routing with consistent hashing\n");
+
+        LoadBalancer stickyLoadBalancer = new LoadBalancer(new MaglevHashAlgorithm());
+        stickyLoadBalancer.setLogger(logger);
+        stickyLoadBalancer.addServer(server1);
+        stickyLoadBalancer.addServer(server2);
+        stickyLoadBalancer.addServer(server3);
+        for (int i = 0; i < 3; i++) {
+            stickyLoadBalancer.routeRequest(new Request("req-" + i, "user-42"));
+        }
+
+        for (LoadBalancingAlgorithm affinity : List.of(new ConsistentHashAlgorithm(100), new MaglevHashAlgorithm())) {
+            List<Server> before = List.of(server1, server2, server3, smallServer1);
+            List<Server> after = List.of(server1, server2, server3);
+            int remapped = 0;
+            for (int i = 0; i < 10_000; i++) {
+                Request request = new Request("req-" + i, "session-" + i);
+                if (affinity.selectServer(before, request) != affinity.selectServer(after, request)) {
+                    remapped++;
+                }
+            }
+            logger.log(affinity.getClass().getSimpleName()
+                    + ": keys remapped after removing one of 4 servers: " + remapped + " / 10000");
+        }
+
+        logger.log("\nHealth checking: server 3 starts failing its probes\n");
+
+        FakeHealthProbe probe = new FakeHealthProbe();
+        OutlierDetector outlierDetector = new OutlierDetector(2, 500, 200, 5_000);
+        loadBalancer.setOutlierDetector(outlierDetector);
+        try (HealthChecker healthChecker = new HealthChecker(probe, 50, 100, outlierDetector)) {
+            probe.fail("3");
+            healthChecker.start(loadBalancer);
+            Thread.sleep(200);
+            for (int i = 0; i < 4; i++) {
+                loadBalancer.routeRequest();
+            }
+
+            logger.log("\nServer 3 recovers and is readmitted after its backoff\n");
+            probe.recover("3");
+            Thread.sleep(400);
+            for (int i = 0; i < 3; i++) {
+                loadBalancer.routeRequest();
+            }
+        }
+
+        logger.log("\nAdmission control: 2 in flight per server, queue of 2, 50ms deadline\n");
+
+        LoadBalancer limitedLoadBalancer = new LoadBalancer(new RoundRobinAlgorithm());
+        limitedLoadBalancer.setLogger(logger);
+        AdmissionController admission = new AdmissionController(2, 50);
+        limitedLoadBalancer.setAdmissionController(admission);
+        metrics.register("limited", admission);
+        Server limitedServer1 = new Server("7", "192.168.1.7");
+        Server limitedServer2 = new Server("8", "192.168.1.8");
+        limitedServer1.setConcurrencyLimit(new FixedLimit(2));
+        limitedServer2.setConcurrencyLimit(new AimdLimit(2, 1, 100, 0.9, 1_000));
+        limitedLoadBalancer.addServer(limitedServer1);
+        limitedLoadBalancer.addServer(limitedServer2);
+        metrics.register(limitedLoadBalancer);
+
+        List<ServerConnection> held = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            held.add(limitedLoadBalancer.acquireConnection());
+        }
+        try {
+            limitedLoadBalancer.routeRequest();
+        } catch (LoadSheddingException e) {
+            logger.log("Shed: " + e.getMessage());
+        }
+        held.forEach(ServerConnection::close);
+        limitedLoadBalancer.routeRequest();
+
+        logger.log("\nAsync routing: server 6 answers in 300ms, server 5 fails\n");
+
+        LoadBalancer asyncLoadBalancer = new LoadBalancer(new RoundRobinAlgorithm());
+        asyncLoadBalancer.addServer(bigServer);
+        asyncLoadBalancer.addServer(smallServer1);
+        asyncLoadBalancer.addServer(smallServer2);
+        InProcessTransport transport = new InProcessTransport();
+        transport.setLatency("4", 5);
+        transport.fail("5");
+        transport.setLatency("6", 300);
+        asyncLoadBalancer.setTransport(transport,
+                new AsyncRoutingPolicy(1_000, 2, true, 20, new RetryBudget(0.2, 10)));
+
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+        long asyncStart = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            responses.add(asyncLoadBalancer.routeAsync(new Request("async-" + i, null, "payload-" + i)));
+        }
+        for (CompletableFuture<Response> response : responses) {
+            Response answer = response.join();
+            logger.log("Request " + answer.getRequestId() + " answered by server " + answer.getServerId()
+                    + " within " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - asyncStart) + "ms");
+        }
+
+        logger.log("\nMetrics\n\n" + metrics.exportText());
+        logger.close();
     }
 }
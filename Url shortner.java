@@ -44,27 +44,242 @@ Interfaces with the database.
 java
 Copy
 Edit
-public class URLShortener {
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+public class URLShortener implements AutoCloseable {
     private static final String DOMAIN = "https://short.ly/";
     private static final int URL_LENGTH = 6;
+    private static final int PARALLEL_CHUNK = 4096;
     private EncoderDecoder encoderDecoder;
     private Database database;
+    private ExpiryWheel expiryWheel;
+    private volatile ClickAnalytics clickAnalytics;
+    private DedupIndex dedupIndex;
+    private volatile RateLimiter rateLimiter;
 
     public URLShortener() {
-        this.encoderDecoder = new EncoderDecoder();
-        this.database = new InMemoryDatabase();
+        this(new ShardedDatabase());
+    }
+
+    public URLShortener(Database database) {
+        this(database, new EncoderDecoder());
+    }
+
+    // A durable store needs a durable counter (e.g. FileIdAllocator); with the default
+    // in-memory one a restart starts again at 000000 and reissues codes already stored.
+    public URLShortener(Database database, IdBlockAllocator idAllocator) {
+        this(database, new EncoderDecoder(new CounterCodeGenerator(idAllocator, 10_000, URL_LENGTH)));
+    }
+
+    public URLShortener(Database database, EncoderDecoder encoderDecoder) {
+        if (database.isDurable() && !encoderDecoder.isDurable()) {
+            throw new IllegalArgumentException("A durable store needs a durable id allocator such as FileIdAllocator");
+        }
+        this.encoderDecoder = encoderDecoder;
+        this.database = database;
+        this.expiryWheel = new ExpiryWheel(1_000, database::deleteURLMappings);
+        this.dedupIndex = new DedupIndex(database, 1 << 16);
     }
 
+    // Shortening a URL that already has a (non-expiring) code returns that code.
     public String shortenURL(String longURL) {
+        requireHttpURL(longURL);
+        long fingerprint = DedupIndex.fingerprint(longURL);
+        String existing = dedupIndex.find(longURL, fingerprint);
+        if (existing != null) {
+            return DOMAIN + existing;
+        }
         String shortURL = encoderDecoder.encode(longURL);
         database.saveURLMapping(shortURL, longURL);
+        return DOMAIN + register(longURL, fingerprint, shortURL);
+    }
+
+    // Rate-limited entry point for untrusted callers; see setRateLimiter.
+    public String shortenURL(String longURL, String clientId) {
+        checkRateLimit(clientId, 1);
+        return shortenURL(longURL);
+    }
+
+    // Stored URLs end up verbatim in a redirect's Location header, so only absolute
+    // http(s) URLs without control characters (CR and LF above all) are accepted.
+    static String requireHttpURL(String longURL) {
+        if (longURL == null) {
+            throw new IllegalArgumentException("URL is required");
+        }
+        for (int i = 0; i < longURL.length(); i++) {
+            if (Character.isISOControl(longURL.charAt(i))) {
+                throw new IllegalArgumentException("URL contains a control character at index " + i);
+            }
+        }
+        URI uri;
+        try {
+            uri = new URI(longURL);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Malformed URL: " + e.getReason(), e);
+        }
+        String scheme = uri.getScheme();
+        if (scheme == null || !(scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"))
+                || uri.getHost() == null) {
+            throw new IllegalArgumentException("Not an absolute http(s) URL");
+        }
+        return longURL;
+    }
+
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    private void checkRateLimit(String clientId, int permits) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null && !limiter.tryAcquire(clientId, permits)) {
+            throw new RateLimitExceededException(clientId);
+        }
+    }
+
+    // A concurrent shorten of the same URL may have registered first; keep its code, drop ours.
+    private String register(String longURL, long fingerprint, String shortURL) {
+        String winner = dedupIndex.register(longURL, fingerprint, shortURL);
+        if (!winner.equals(shortURL)) {
+            database.deleteURLMapping(shortURL);
+        }
+        return winner;
+    }
+
+    public String shortenURL(String longURL, long ttlMillis) {
+        requireHttpURL(longURL);
+        String shortURL = encoderDecoder.encode(longURL);
+        long expiresAtMillis = System.currentTimeMillis() + ttlMillis;
+        database.saveURLMapping(shortURL, longURL, expiresAtMillis);
+        expiryWheel.schedule(shortURL, expiresAtMillis);
         return DOMAIN + shortURL;
     }
 
+    // Counts as an anonymous click when analytics are on.
     public String getOriginalURL(String shortURL) {
+        return getOriginalURL(shortURL, null);
+    }
+
+    // visitorId (null if unknown) feeds the unique-visitor estimate.
+    public String getOriginalURL(String shortURL, String visitorId) {
         String key = shortURL.replace(DOMAIN, "");
+        String longURL = lookup(key);
+        ClickAnalytics analytics = clickAnalytics;
+        if (longURL != null && analytics != null) {
+            analytics.recordClick(key, visitorId);
+        }
+        return longURL;
+    }
+
+    public void setClickAnalytics(ClickAnalytics clickAnalytics) {
+        this.clickAnalytics = clickAnalytics;
+    }
+
+    // Stops the expiry ticker. The store, analytics and rate limiter belong to the caller.
+    @Override
+    public void close() {
+        expiryWheel.close();
+    }
+
+    private String lookup(String key) {
+        // The wheel fires up to one tick late; don't serve a code in that gap.
+        if (expiryWheel.isExpired(key)) {
+            return null;
+        }
         return database.getLongURL(key);
     }
+
+    public List<String> shortenAll(List<String> longURLs) {
+        return shortenAll(longURLs, false);
+    }
+
+    // A batch costs one permit per URL, so bulk writers can't bypass the limit by batching.
+    public List<String> shortenAll(List<String> longURLs, String clientId) {
+        checkRateLimit(clientId, longURLs.size());
+        return shortenAll(longURLs, false);
+    }
+
+    // Identical URLs in one batch share a code, as do URLs shortened before; codes and
+    // writes for the rest go out in blocks, not one by one.
+    public List<String> shortenAll(List<String> longURLs, boolean parallel) {
+        Map<String, Integer> firstIndex = new HashMap<>(longURLs.size() * 2);
+        List<String> unique = new ArrayList<>();
+        int[] uniqueIndex = new int[longURLs.size()];
+        for (int i = 0; i < longURLs.size(); i++) {
+            String longURL = requireHttpURL(longURLs.get(i));
+            Integer existing = firstIndex.putIfAbsent(longURL, unique.size());
+            if (existing == null) {
+                uniqueIndex[i] = unique.size();
+                unique.add(longURL);
+            } else {
+                uniqueIndex[i] = existing;
+            }
+        }
+
+        String[] shortURLs = new String[unique.size()];
+        long[] fingerprints = new long[unique.size()];
+        List<String> fresh = new ArrayList<>();
+        int[] freshIndex = new int[unique.size()];
+        for (int i = 0; i < unique.size(); i++) {
+            fingerprints[i] = DedupIndex.fingerprint(unique.get(i));
+            String existing = dedupIndex.find(unique.get(i), fingerprints[i]);
+            if (existing != null) {
+                shortURLs[i] = DOMAIN + existing;
+            } else {
+                freshIndex[fresh.size()] = i;
+                fresh.add(unique.get(i));
+            }
+        }
+
+        int chunks = (fresh.size() + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        IntStream chunkIndexes = IntStream.range(0, chunks);
+        (parallel ? chunkIndexes.parallel() : chunkIndexes).forEach(chunk -> {
+            int from = chunk * PARALLEL_CHUNK;
+            int to = Math.min(from + PARALLEL_CHUNK, fresh.size());
+            String[] codes = encoderDecoder.encodeAll(to - from);
+            database.saveURLMappings(Arrays.asList(codes), fresh.subList(from, to));
+            for (int i = 0; i < codes.length; i++) {
+                int index = freshIndex[from + i];
+                shortURLs[index] = DOMAIN + register(fresh.get(from + i), fingerprints[index], codes[i]);
+            }
+        });
+
+        List<String> result = new ArrayList<>(longURLs.size());
+        for (int index : uniqueIndex) {
+            result.add(shortURLs[index]);
+        }
+        return result;
+    }
+
+    public List<String> resolveAll(List<String> shortURLs) {
+        return resolveAll(shortURLs, false);
+    }
+
+    public List<String> resolveAll(List<String> shortURLs, boolean parallel) {
+        String[] longURLs = new String[shortURLs.size()];
+        int chunks = (shortURLs.size() + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        IntStream chunkIndexes = IntStream.range(0, chunks);
+        (parallel ? chunkIndexes.parallel() : chunkIndexes).forEach(chunk -> {
+            int from = chunk * PARALLEL_CHUNK;
+            int to = Math.min(from + PARALLEL_CHUNK, shortURLs.size());
+            List<String> keys = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                String shortURL = shortURLs.get(i);
+                keys.add(shortURL.startsWith(DOMAIN) ? shortURL.substring(DOMAIN.length()) : shortURL);
+            }
+            List<String> resolved = database.getLongURLs(keys);
+            for (int i = 0; i < resolved.size(); i++) {
+                longURLs[from + i] = expiryWheel.isExpired(keys.get(i)) ? null : resolved.get(i);
+            }
+        });
+        return Arrays.asList(longURLs);
+    }
 }
 📌 URLMapping (Model)
 Represents a URL mapping between short URL and long URL.
@@ -75,10 +290,16 @@ Edit
 public class URLMapping {
     private String shortURL;
     private String longURL;
+    private long expiresAtMillis; // 0 = never expires
 
     public URLMapping(String shortURL, String longURL) {
+        this(shortURL, longURL, 0);
+    }
+
+    public URLMapping(String shortURL, String longURL, long expiresAtMillis) {
         this.shortURL = shortURL;
         this.longURL = longURL;
+        this.expiresAtMillis = expiresAtMillis;
     }
 
     public String getShortURL() {
@@ -88,6 +309,14 @@ public class URLMapping {
     public String getLongURL() {
         return longURL;
     }
+
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    public boolean isExpired(long nowMillis) {
+        return expiresAtMillis != 0 && expiresAtMillis <= nowMillis;
+    }
 }
 📌 Database (Storage Layer)
 In-memory Database (for simplicity)
@@ -110,62 +339,4010 @@ public class InMemoryDatabase implements Database {
     public String getLongURL(String shortURL) {
         return urlMap.get(shortURL);
     }
+
+    @Override
+    public void deleteURLMapping(String shortURL) {
+        urlMap.remove(shortURL);
+    }
 }
 📌 Database Interface (for extensibility)
 java
 Copy
 Edit
+import java.util.ArrayList;
+import java.util.List;
+
 public interface Database {
+    // Saves overwrite: a code is unique only as long as the id counter that issued it is
+    // never reset, which is why URLShortener refuses a durable store with a volatile counter.
     void saveURLMapping(String shortURL, String longURL);
     String getLongURL(String shortURL);
+    void deleteURLMapping(String shortURL);
+
+    // True if mappings outlive the process.
+    default boolean isDurable() {
+        return false;
+    }
+
+    // The store underneath any caching layers, for reads that are not serving redirects.
+    default Database backingStore() {
+        return this;
+    }
+
+    interface MappingVisitor {
+        void visit(String shortURL, String longURL, long expiresAtMillis);
+    }
+
+    // Whether shortURL is mapped, answered from memory where the store can, without reading
+    // the long URL. An expired mapping the store has not dropped yet may still count.
+    default boolean containsMapping(String shortURL) {
+        return getLongURL(shortURL) != null;
+    }
+
+    // Weakly consistent walk over live mappings, used to rebuild in-memory indexes on open.
+    // Stores that cannot enumerate, or have nothing to rebuild from, visit nothing.
+    default void forEachMapping(MappingVisitor visitor) {
+    }
+
+    // Stores without native expiry keep the mapping until ExpiryWheel deletes it.
+    default void saveURLMapping(String shortURL, String longURL, long expiresAtMillis) {
+        saveURLMapping(shortURL, longURL);
+    }
+
+    // Stores that can write a batch more cheaply than one call per mapping override these.
+    default void saveURLMappings(List<String> shortURLs, List<String> longURLs) {
+        for (int i = 0; i < shortURLs.size(); i++) {
+            saveURLMapping(shortURLs.get(i), longURLs.get(i));
+        }
+    }
+
+    default void deleteURLMappings(List<String> shortURLs) {
+        for (String shortURL : shortURLs) {
+            deleteURLMapping(shortURL);
+        }
+    }
+
+    default List<String> getLongURLs(List<String> shortURLs) {
+        List<String> longURLs = new ArrayList<>(shortURLs.size());
+        for (String shortURL : shortURLs) {
+            longURLs.add(getLongURL(shortURL));
+        }
+        return longURLs;
+    }
 }
 📌 Encoder/Decoder (Hashing/Encoding URL)
 Generates short URLs using Base62 Encoding.
 
 
 public class EncoderDecoder {
+    private final CounterCodeGenerator generator;
+
+    public EncoderDecoder() {
+        this(new CounterCodeGenerator(new InMemoryIdAllocator(), 10_000, 6));
+    }
+
+    public EncoderDecoder(CounterCodeGenerator generator) {
+        this.generator = generator;
+    }
+
+    // Codes come from a counter, so two URLs can never collide on the same code.
     public String encode(String longURL) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] hash = md.digest(longURL.getBytes(StandardCharsets.UTF_8));
-            String encoded = Base64.getUrlEncoder().encodeToString(hash);
-            return encoded.substring(0, 6); // Return first 6 characters
-        } catch (Exception e) {
-            throw new RuntimeException("Error generating hash", e);
+        return generator.nextCode();
+    }
+
+    public String[] encodeAll(int count) {
+        return generator.nextCodes(count);
+    }
+
+    public long decode(String shortURL) {
+        return Base62.decode(shortURL);
+    }
+
+    public boolean isDurable() {
+        return generator.isDurable();
+    }
+}
+
+📌 Base62 (Short Code Packing)
+Packs a Base62 short code of up to 10 characters into one long, so stores can key
+on primitives instead of Strings. Each digit is stored as value + 1 (bijective
+base 63) so "0a" and "a" stay distinct; 0 means "not packable".
+
+public final class Base62 {
+    public static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    public static final int MAX_PACKED_LENGTH = 10;
+    private static final byte[] DIGITS = new byte[128];
+
+    static {
+        java.util.Arrays.fill(DIGITS, (byte) -1);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            DIGITS[ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    private Base62() {
+    }
+
+    public static long pack(CharSequence code) {
+        int length = code.length();
+        if (length == 0 || length > MAX_PACKED_LENGTH) {
+            return 0;
+        }
+        long packed = 0;
+        for (int i = 0; i < length; i++) {
+            char c = code.charAt(i);
+            int digit = c < DIGITS.length ? DIGITS[c] : -1;
+            if (digit < 0) {
+                return 0;
+            }
+            packed = packed * 63 + digit + 1;
+        }
+        return packed;
+    }
+
+    // Writes id right-aligned into buffer[0, buffer.length), left-padded with '0'
+    // to minLength; returns the index of the first character.
+    public static int encode(long id, char[] buffer, int minLength) {
+        int position = buffer.length;
+        do {
+            buffer[--position] = ALPHABET.charAt((int) (id % 62));
+            id /= 62;
+        } while (id != 0);
+        int start = buffer.length - minLength;
+        while (position > start) {
+            buffer[--position] = '0';
+        }
+        return position;
+    }
+
+    public static String unpack(long packed) {
+        char[] buffer = new char[MAX_PACKED_LENGTH];
+        int position = buffer.length;
+        while (packed != 0) {
+            buffer[--position] = ALPHABET.charAt((int) (packed % 63) - 1);
+            packed /= 63;
         }
+        return new String(buffer, position, buffer.length - position);
+    }
+
+    public static long decode(CharSequence code) {
+        long id = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            int digit = c < DIGITS.length ? DIGITS[c] : -1;
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not a Base62 code: " + code);
+            }
+            id = id * 62 + digit;
+        }
+        return id;
+    }
+
+    // murmur3 finalizer, used to spread packed codes over shards and slots
+    public static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
     }
 }
 
-public class URLShortenerDemo {
-    public static void main(String[] args) {
-        URLShortener urlShortener = new URLShortener();
-        
-        String longURL = "https://www.example.com/articles/design-url-shortener-java";
-        
-        // Shorten URL
-        String shortURL = urlShortener.shortenURL(longURL);
-        System.out.println("Short URL: " + shortURL);
+📌 LongHashTable (Primitive Index)
+Open-addressing long -> long map with keys and values interleaved in one array.
+Writers serialize on the table; readers never lock: a slot's value is written
+before its key, and a resize publishes a new array. Keys must be non-zero; a value
+of 0 means absent, so remove() leaves the key in place with a 0 value until the next
+resize, which drops those tombstones (and keeps the capacity if they were most of it).
 
-        // Retrieve original URL
-        String retrievedURL = urlShortener.getOriginalURL(shortURL);
-        System.out.println("Retrieved URL: " + retrievedURL);
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LongHashTable {
+    private volatile AtomicLongArray slots;
+    private int usedSlots;
+
+    public LongHashTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 4 / 3) - 1) << 1;
+        this.slots = new AtomicLongArray(capacity * 2);
+    }
+
+    public long get(long key) {
+        AtomicLongArray table = slots;
+        int mask = (table.length() >> 1) - 1;
+        int index = (int) Base62.mix(key) & mask;
+        while (true) {
+            long slotKey = table.get(index << 1);
+            if (slotKey == key) {
+                return table.get((index << 1) + 1);
+            }
+            if (slotKey == 0) {
+                return 0;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public interface EntryVisitor {
+        void visit(long key, long value);
+    }
+
+    // Weakly consistent: entries written during the walk may or may not be seen.
+    public void forEach(EntryVisitor visitor) {
+        AtomicLongArray table = slots;
+        for (int i = 0; i < table.length(); i += 2) {
+            long key = table.get(i);
+            long value = table.get(i + 1);
+            if (key != 0 && value != 0) {
+                visitor.visit(key, value);
+            }
+        }
+    }
+
+    public synchronized long put(long key, long value) {
+        return write(key, value, false);
+    }
+
+    public synchronized long putIfAbsent(long key, long value) {
+        return write(key, value, true);
+    }
+
+    public synchronized long remove(long key) {
+        AtomicLongArray table = slots;
+        int slot = findSlot(table, key);
+        if (table.get(slot << 1) != key) {
+            return 0;
+        }
+        return table.getAndSet((slot << 1) + 1, 0);
+    }
+
+    // Sets the value (0 removes) only if the key still maps to expected.
+    public synchronized boolean replace(long key, long expected, long value) {
+        AtomicLongArray table = slots;
+        int slot = findSlot(table, key);
+        if (expected == 0 || table.get(slot << 1) != key || table.get((slot << 1) + 1) != expected) {
+            return false;
+        }
+        table.set((slot << 1) + 1, value);
+        return true;
+    }
+
+    private long write(long key, long value, boolean onlyIfAbsent) {
+        if (key == 0 || value == 0) {
+            throw new IllegalArgumentException("Keys and values must be non-zero");
+        }
+        AtomicLongArray table = slots;
+        int slot = findSlot(table, key);
+        if (table.get(slot << 1) == key) {
+            long previous = table.get((slot << 1) + 1);
+            if (!onlyIfAbsent || previous == 0) {
+                table.set((slot << 1) + 1, value);
+            }
+            return previous;
+        }
+
+        table.set((slot << 1) + 1, value);
+        table.set(slot << 1, key);
+        if (++usedSlots * 4 >= (table.length() >> 1) * 3) {
+            resize(table);
+        }
+        return 0;
+    }
+
+    private static int findSlot(AtomicLongArray table, long key) {
+        int mask = (table.length() >> 1) - 1;
+        int index = (int) Base62.mix(key) & mask;
+        while (true) {
+            long slotKey = table.get(index << 1);
+            if (slotKey == key || slotKey == 0) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    // Rebuilds the table without removed keys. It only doubles if at least half the
+    // capacity is live; otherwise the slots were mostly tombstones and the size holds, so
+    // memory follows the live mappings rather than everything ever inserted.
+    private void resize(AtomicLongArray table) {
+        int capacity = table.length() >> 1;
+        int live = 0;
+        for (int i = 1; i < table.length(); i += 2) {
+            if (table.get(i) != 0) {
+                live++;
+            }
+        }
+        AtomicLongArray resized = new AtomicLongArray(live * 2 < capacity ? table.length() : table.length() * 2);
+        int used = 0;
+        for (int i = 0; i < table.length(); i += 2) {
+            long key = table.get(i);
+            long value = table.get(i + 1);
+            if (key != 0 && value != 0) {
+                int slot = findSlot(resized, key);
+                resized.set((slot << 1) + 1, value);
+                resized.set(slot << 1, key);
+                used++;
+            }
+        }
+        usedSlots = used;
+        slots = resized;
     }
 }
- 4. Key Considerations
-📌 Scalability
-Use Distributed Databases (e.g., Cassandra, DynamoDB) instead of a single in-memory database.
 
-Partition data by hashing URLs and distributing across multiple nodes.
+📌 ShardedDatabase (Concurrent Storage)
+Replaces the HashMap-backed store for high QPS. Mappings are sharded by short-code
+hash; each shard keys a LongHashTable by the packed Base62 code and keeps the long
+URLs as length-prefixed UTF-8 in an arena of byte[] pages (4 KiB at first,
+doubling up to 1 MiB, so an idle store costs a few MiB, not hundreds), so a
+mapping costs roughly 21 bytes of index plus the URL bytes instead of two Strings and
+a HashMap node. Lookups are lock-free; writes lock only their shard. Codes that do not
+pack (non-Base62 characters, longer than 10) fall back to a per-shard concurrent map.
 
-📌 Performance
-Caching: Frequently accessed URLs should be cached for faster retrieval (e.g., Redis, Memcached).
+Pages are append-only, so overwrites and deletes (including expiry) leave dead records
+behind. Each shard counts those bytes, and once they pass half of what it has written it
+copies the live records into fresh pages and drops the old ones, so the arena stays within
+about twice the live URL bytes. Records carry no key, so finding a page's live records takes
+an index walk either way; the shard rewrites all of its pages in that one walk rather than
+picking pages. Page ids are never reused: a lookup holding a location in a dropped page
+finds the page gone and re-reads the index, which already points at the copy.
 
-Load Balancing: Handle high request rates by using load balancers (Nginx, Apigee).
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-📌 Security
-Rate Limiting: Prevent abuse by limiting URL shortening requests.
+public class ShardedDatabase implements Database {
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int FIRST_PAGE_SIZE = 4096;
+    private static final long MIN_COMPACT_BYTES = 4 * FIRST_PAGE_SIZE;
 
-Blacklist Filtering: Prevent malicious URLs from being shortened.
+    private final Shard[] shards;
+    private final int shardShift;
+
+    // Indexes start small and grow with the data; size them up front for bulk loads.
+    public ShardedDatabase() {
+        this(64, 1 << 10);
+    }
+
+    public ShardedDatabase(int shardCount, int expectedMappingsPerShard) {
+        if (Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two: " + shardCount);
+        }
+        this.shards = new Shard[shardCount];
+        this.shardShift = 64 - Integer.numberOfTrailingZeros(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(expectedMappingsPerShard);
+        }
+    }
+
+    @Override
+    public void saveURLMapping(String shortURL, String longURL) {
+        long key = Base62.pack(shortURL);
+        Shard shard = shardFor(key, shortURL);
+        if (key == 0) {
+            shard.overflow.put(shortURL, longURL);
+            return;
+        }
+        synchronized (shard) {
+            shard.put(key, longURL.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Groups the batch by shard so each shard lock is taken once.
+    @Override
+    public void saveURLMappings(List<String> shortURLs, List<String> longURLs) {
+        int count = shortURLs.size();
+        long[] keys = new long[count];
+        int[] shardOf = new int[count];
+        int[] starts = new int[shards.length + 1];
+        for (int i = 0; i < count; i++) {
+            keys[i] = Base62.pack(shortURLs.get(i));
+            shardOf[i] = shardIndex(keys[i], shortURLs.get(i));
+            starts[shardOf[i] + 1]++;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[count];
+        int[] fill = Arrays.copyOf(starts, shards.length);
+        for (int i = 0; i < count; i++) {
+            order[fill[shardOf[i]]++] = i;
+        }
+
+        for (int s = 0; s < shards.length; s++) {
+            if (starts[s] == starts[s + 1]) {
+                continue;
+            }
+            Shard shard = shards[s];
+            synchronized (shard) {
+                for (int j = starts[s]; j < starts[s + 1]; j++) {
+                    int i = order[j];
+                    if (keys[i] == 0) {
+                        shard.overflow.put(shortURLs.get(i), longURLs.get(i));
+                    } else {
+                        shard.put(keys[i], longURLs.get(i).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getLongURL(String shortURL) {
+        long key = Base62.pack(shortURL);
+        Shard shard = shardFor(key, shortURL);
+        if (key == 0) {
+            return shard.overflow.get(shortURL);
+        }
+        while (true) {
+            long location = shard.index.get(key);
+            if (location == 0) {
+                return null;
+            }
+            String longURL = shard.read(location);
+            if (longURL != null) {
+                return longURL;
+            }
+        }
+    }
+
+    @Override
+    public boolean containsMapping(String shortURL) {
+        long key = Base62.pack(shortURL);
+        Shard shard = shardFor(key, shortURL);
+        return key == 0 ? shard.overflow.containsKey(shortURL) : shard.index.get(key) != 0;
+    }
+
+    @Override
+    public void deleteURLMapping(String shortURL) {
+        long key = Base62.pack(shortURL);
+        Shard shard = shardFor(key, shortURL);
+        if (key == 0) {
+            shard.overflow.remove(shortURL);
+            return;
+        }
+        synchronized (shard) {
+            shard.remove(key);
+        }
+    }
+
+    private Shard shardFor(long key, String shortURL) {
+        return shards[shardIndex(key, shortURL)];
+    }
+
+    private int shardIndex(long key, String shortURL) {
+        long hash = key != 0 ? Base62.mix(key) : Base62.mix(shortURL.hashCode());
+        return shardShift == 64 ? 0 : (int) (hash >>> shardShift);
+    }
+
+    private static class Shard {
+        final LongHashTable index;
+        final Map<String, String> overflow = new ConcurrentHashMap<>();
+        volatile Arena arena = new Arena(0, new byte[0][]);
+        int writeOffset;
+        int nextPageSize = FIRST_PAGE_SIZE;
+        long writtenBytes;
+        long garbageBytes;
+
+        Shard(int expectedMappings) {
+            this.index = new LongHashTable(expectedMappings);
+        }
+
+        // put, remove and compact: caller holds the shard lock.
+        void put(long key, byte[] value) {
+            release(index.put(key, append(value, 0, value.length)));
+        }
+
+        void remove(long key) {
+            release(index.remove(key));
+        }
+
+        private void release(long location) {
+            if (location == 0) {
+                return;
+            }
+            garbageBytes += recordLengthAt(location);
+            if (garbageBytes * 2 > writtenBytes && writtenBytes >= MIN_COMPACT_BYTES) {
+                compact();
+            }
+        }
+
+        // The index moves to the copies before the old pages are unpublished, so a reader that
+        // finds its page gone always finds the new location on its next index read.
+        private void compact() {
+            long liveBytes = writtenBytes - garbageBytes;
+            Arena old = arena;
+            int firstNewPage = old.base + old.pages.length;
+            writtenBytes = 0;
+            garbageBytes = 0;
+            nextPageSize = (int) Math.min(PAGE_SIZE, Math.max(FIRST_PAGE_SIZE, Long.highestOneBit(liveBytes) << 1));
+            addPage(0);
+            index.forEach((key, location) -> {
+                if (pageOf(location) < firstNewPage) {
+                    byte[] page = old.pages[pageOf(location) - old.base];
+                    int position = (int) location;
+                    int length = readVarInt(page, position);
+                    index.put(key, append(page, position + varIntSize(length), length));
+                }
+            });
+            Arena current = arena;
+            arena = new Arena(firstNewPage,
+                    Arrays.copyOfRange(current.pages, firstNewPage - current.base, current.pages.length));
+        }
+
+        // Returns (page + 1) << 32 | offset.
+        private long append(byte[] source, int from, int length) {
+            int recordLength = varIntSize(length) + length;
+            if (recordLength > PAGE_SIZE) {
+                throw new IllegalArgumentException("URL too long: " + length + " bytes");
+            }
+            byte[][] pages = arena.pages;
+            byte[] last = pages.length == 0 ? null : pages[pages.length - 1];
+            if (last == null || writeOffset + recordLength > last.length) {
+                addPage(recordLength);
+            }
+            Arena current = arena;
+            int page = current.base + current.pages.length - 1;
+            int offset = writeOffset;
+            byte[] target = current.pages[current.pages.length - 1];
+            int position = writeVarInt(target, offset, length);
+            System.arraycopy(source, from, target, position, length);
+            writeOffset = position + length;
+            writtenBytes += recordLength;
+            return ((long) (page + 1) << 32) | offset;
+        }
+
+        private void addPage(int minimumSize) {
+            Arena current = arena;
+            byte[][] grown = Arrays.copyOf(current.pages, current.pages.length + 1);
+            grown[current.pages.length] = new byte[Math.max(nextPageSize, minimumSize)];
+            arena = new Arena(current.base, grown);
+            nextPageSize = Math.min(PAGE_SIZE, nextPageSize * 2);
+            writeOffset = 0;
+        }
+
+        private int recordLengthAt(long location) {
+            Arena current = arena;
+            int length = readVarInt(current.pages[pageOf(location) - current.base], (int) location);
+            return varIntSize(length) + length;
+        }
+
+        private static int pageOf(long location) {
+            return (int) (location >>> 32) - 1;
+        }
+
+        // null if the page was dropped by a compaction; the caller re-reads the index.
+        String read(long location) {
+            Arena current = arena;
+            int page = pageOf(location) - current.base;
+            if (page < 0) {
+                return null;
+            }
+            byte[] data = current.pages[page];
+            int position = (int) location;
+            int length = readVarInt(data, position);
+            return new String(data, position + varIntSize(length), length, StandardCharsets.UTF_8);
+        }
+
+        private static int readVarInt(byte[] page, int position) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = page[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private static int varIntSize(int value) {
+            int size = 1;
+            while ((value >>>= 7) != 0) {
+                size++;
+            }
+            return size;
+        }
+
+        private static int writeVarInt(byte[] target, int position, int value) {
+            while ((value & ~0x7f) != 0) {
+                target[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            target[position++] = (byte) value;
+            return position;
+        }
+    }
+
+    // Pages by id, starting at base; ids below base were dropped by a compaction.
+    private static final class Arena {
+        final int base;
+        final byte[][] pages;
+
+        Arena(int base, byte[][] pages) {
+            this.base = base;
+            this.pages = pages;
+        }
+    }
+}
+
+📌 IdBlockAllocator (Counter Persistence)
+Hands out ranges of ids from a counter. Generators lease a whole block at once, so the
+shared counter (and its fsync) is touched once per block instead of once per URL.
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public interface IdBlockAllocator {
+    // Returns the first id of a fresh, never-before-leased range of blockSize ids.
+    long leaseBlock(int blockSize);
+
+    // True if "never before leased" holds across restarts, not just within one process.
+    default boolean isDurable() {
+        return false;
+    }
+}
+
+public class InMemoryIdAllocator implements IdBlockAllocator {
+    private final AtomicLong next = new AtomicLong();
+
+    @Override
+    public long leaseBlock(int blockSize) {
+        return next.getAndAdd(blockSize);
+    }
+}
+
+📌 FileIdAllocator (Durable Counter)
+Persists the high-water mark before a block is handed out, so after a crash the ids of
+partly used blocks are skipped, never reissued.
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FileIdAllocator implements IdBlockAllocator, AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+    private long highWaterMark;
+
+    public FileIdAllocator(Path counterFile) throws IOException {
+        this.channel = FileChannel.open(counterFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() >= Long.BYTES) {
+            channel.read(buffer, 0);
+            highWaterMark = buffer.flip().getLong();
+        }
+    }
+
+    @Override
+    public synchronized long leaseBlock(int blockSize) {
+        long start = highWaterMark;
+        try {
+            buffer.clear().putLong(start + blockSize).flip();
+            channel.write(buffer, 0);
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not persist id counter", e);
+        }
+        highWaterMark = start + blockSize;
+        return start;
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+📌 CounterCodeGenerator (Short Code Generation)
+Each thread owns a leased block of ids and a reusable char buffer, so generating a
+code is a thread-local increment plus Base62 digits written straight into the buffer.
+
+public class CounterCodeGenerator {
+    private final IdBlockAllocator allocator;
+    private final int blockSize;
+    private final int minLength;
+    private final ThreadLocal<Block> blocks = ThreadLocal.withInitial(Block::new);
+
+    public CounterCodeGenerator(IdBlockAllocator allocator, int blockSize, int minLength) {
+        this.allocator = allocator;
+        this.blockSize = blockSize;
+        this.minLength = minLength;
+    }
+
+    public boolean isDurable() {
+        return allocator.isDurable();
+    }
+
+    public long nextId() {
+        Block block = blocks.get();
+        if (block.next == block.end) {
+            block.next = allocator.leaseBlock(blockSize);
+            block.end = block.next + blockSize;
+        }
+        return block.next++;
+    }
+
+    public String nextCode() {
+        Block block = blocks.get();
+        int start = Base62.encode(nextId(), block.buffer, minLength);
+        return new String(block.buffer, start, block.buffer.length - start);
+    }
+
+    // Leases whatever the batch still needs in one allocator call instead of blockSize at a time.
+    public String[] nextCodes(int count) {
+        Block block = blocks.get();
+        String[] codes = new String[count];
+        for (int i = 0; i < count; i++) {
+            if (block.next == block.end) {
+                int lease = Math.max(blockSize, count - i);
+                block.next = allocator.leaseBlock(lease);
+                block.end = block.next + lease;
+            }
+            int start = Base62.encode(block.next++, block.buffer, minLength);
+            codes[i] = new String(block.buffer, start, block.buffer.length - start);
+        }
+        return codes;
+    }
+
+    private static class Block {
+        final char[] buffer = new char[11];
+        long next;
+        long end;
+    }
+}
+
+📌 FrequencySketch (Cache Admission)
+Count-min sketch of 4-bit counters (16 per long, 4 rows) estimating how often a key
+was requested recently. All counters are halved every 10 x width additions, so old
+popularity fades.
+
+public class FrequencySketch {
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    public FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+        this.table = new long[width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    public int frequency(long hash) {
+        int frequency = 15;
+        for (int row = 0; row < SEEDS.length; row++) {
+            long h = Base62.mix(hash + SEEDS[row]);
+            int offset = (int) (h >>> 60) << 2;
+            frequency = Math.min(frequency, (int) ((table[(int) h & mask] >>> offset) & 0xf));
+        }
+        return frequency;
+    }
+
+    public void increment(long hash) {
+        for (int row = 0; row < SEEDS.length; row++) {
+            long h = Base62.mix(hash + SEEDS[row]);
+            int index = (int) h & mask;
+            int offset = (int) (h >>> 60) << 2;
+            if (((table[index] >>> offset) & 0xf) < 15) {
+                table[index] += 1L << offset;
+            }
+        }
+        if (++additions >= sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+    }
+}
+
+📌 CachingDatabase (Redirect Cache)
+Read-through cache decorating any Database, bounded by bytes and split into lock-striped
+segments. Each segment runs W-TinyLFU: new entries land in a small LRU window (1%); when
+they leave it they only enter the main SLRU (probation + 80% protected) if the sketch
+says they are requested more often than the entry they would evict. Unknown codes are
+cached as negative entries for a short TTL so scans of bad codes do not reach the store;
+known ones live for a longer TTL, which bounds staleness if the store changes underneath.
+Every save or delete bumps its segment's version, and a read-through only installs what it
+read if the version is unchanged, so a value read before a concurrent write is never cached.
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CachingDatabase implements Database {
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    private static final int SEGMENTS = 16;
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Database delegate;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingDatabase(Database delegate, long maxBytes, long negativeTtlMillis) {
+        this(delegate, maxBytes, DEFAULT_TTL_MILLIS, negativeTtlMillis);
+    }
+
+    public CachingDatabase(Database delegate, long maxBytes, long ttlMillis, long negativeTtlMillis) {
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    @Override
+    public void saveURLMapping(String shortURL, String longURL) {
+        delegate.saveURLMapping(shortURL, longURL);
+        long hash = hashOf(shortURL);
+        segmentFor(hash).invalidate(shortURL);
+    }
+
+    @Override
+    public void saveURLMapping(String shortURL, String longURL, long expiresAtMillis) {
+        delegate.saveURLMapping(shortURL, longURL, expiresAtMillis);
+        segmentFor(hashOf(shortURL)).invalidate(shortURL);
+    }
+
+    @Override
+    public void saveURLMappings(List<String> shortURLs, List<String> longURLs) {
+        delegate.saveURLMappings(shortURLs, longURLs);
+        for (String shortURL : shortURLs) {
+            segmentFor(hashOf(shortURL)).invalidate(shortURL);
+        }
+    }
+
+    @Override
+    public void deleteURLMapping(String shortURL) {
+        delegate.deleteURLMapping(shortURL);
+        segmentFor(hashOf(shortURL)).invalidate(shortURL);
+    }
+
+    @Override
+    public void deleteURLMappings(List<String> shortURLs) {
+        delegate.deleteURLMappings(shortURLs);
+        for (String shortURL : shortURLs) {
+            segmentFor(hashOf(shortURL)).invalidate(shortURL);
+        }
+    }
+
+    @Override
+    public boolean isDurable() {
+        return delegate.isDurable();
+    }
+
+    @Override
+    public Database backingStore() {
+        return delegate.backingStore();
+    }
+
+    @Override
+    public boolean containsMapping(String shortURL) {
+        return delegate.containsMapping(shortURL);
+    }
+
+    @Override
+    public void forEachMapping(MappingVisitor visitor) {
+        delegate.forEachMapping(visitor);
+    }
+
+    @Override
+    public String getLongURL(String shortURL) {
+        long hash = hashOf(shortURL);
+        Segment segment = segmentFor(hash);
+        CacheEntry entry = segment.get(shortURL, hash);
+        long now = System.nanoTime();
+        if (entry != null) {
+            if (now - entry.expiresAtNanos < 0) {
+                (entry.value != null ? hits : negativeHits).increment();
+                return entry.value;
+            }
+            segment.expire(shortURL, entry);
+        }
+
+        misses.increment();
+        long version = segment.version;
+        String longURL = delegate.getLongURL(shortURL);
+        long expiresAt = now + (longURL == null ? negativeTtlNanos : ttlNanos);
+        int weight = ENTRY_OVERHEAD_BYTES + 2 * (shortURL.length() + (longURL == null ? 0 : longURL.length()));
+        segment.putIfUnchanged(shortURL, new CacheEntry(longURL, hash, weight, expiresAt), version);
+        return longURL;
+    }
+
+    public CacheStats getStats() {
+        long bytes = 0;
+        long entries = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.windowBytes + segment.probationBytes + segment.protectedBytes;
+                entries += segment.window.size() + segment.probation.size() + segment.protectedEntries.size();
+            }
+        }
+        return new CacheStats(hits.sum(), negativeHits.sum(), misses.sum(), evictions.sum(), entries, bytes);
+    }
+
+    private static long hashOf(String shortURL) {
+        long packed = Base62.pack(shortURL);
+        return Base62.mix(packed != 0 ? packed : shortURL.hashCode());
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static class CacheEntry {
+        final String value;
+        final long hash;
+        final int weight;
+        final long expiresAtNanos;
+
+        CacheEntry(String value, long hash, int weight, long expiresAtNanos) {
+            this.value = value;
+            this.hash = hash;
+            this.weight = weight;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final class Segment {
+        final LinkedHashMap<String, CacheEntry> window = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<String, CacheEntry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<String, CacheEntry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        final long maxWindowBytes;
+        final long maxMainBytes;
+        final long maxProtectedBytes;
+        final FrequencySketch sketch;
+        long windowBytes;
+        long probationBytes;
+        long protectedBytes;
+        // Bumped under the lock by every invalidate; read without it before a store read.
+        volatile long version;
+
+        Segment(long maxBytes) {
+            this.maxWindowBytes = Math.max(ENTRY_OVERHEAD_BYTES, maxBytes / 100);
+            this.maxMainBytes = maxBytes - maxWindowBytes;
+            this.maxProtectedBytes = maxMainBytes * 8 / 10;
+            this.sketch = new FrequencySketch((int) Math.min(1 << 24, maxBytes / 128));
+        }
+
+        synchronized CacheEntry get(String key, long hash) {
+            sketch.increment(hash);
+            CacheEntry entry = window.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            entry = probation.remove(key);
+            if (entry != null) {
+                probationBytes -= entry.weight;
+                protectedEntries.put(key, entry);
+                protectedBytes += entry.weight;
+                demoteProtected();
+                return entry;
+            }
+            return protectedEntries.get(key);
+        }
+
+        // Drops the entry if a save or delete hit this segment since expectedVersion was read.
+        synchronized void putIfUnchanged(String key, CacheEntry entry, long expectedVersion) {
+            if (version != expectedVersion) {
+                return;
+            }
+            removeLocked(key);
+            window.put(key, entry);
+            windowBytes += entry.weight;
+            while (windowBytes > maxWindowBytes && !window.isEmpty()) {
+                Map.Entry<String, CacheEntry> candidate = eldest(window);
+                window.remove(candidate.getKey());
+                windowBytes -= candidate.getValue().weight;
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+
+        synchronized void invalidate(String key) {
+            version++;
+            removeLocked(key);
+        }
+
+        // Removes an expired entry unless another reader already replaced it.
+        synchronized void expire(String key, CacheEntry expired) {
+            if (window.get(key) == expired || probation.get(key) == expired || protectedEntries.get(key) == expired) {
+                removeLocked(key);
+            }
+        }
+
+        // TinyLFU: the window's evictee replaces main-space LRU victims only while
+        // it is requested more often than each of them.
+        private void admit(String key, CacheEntry candidate) {
+            if (candidate.weight > maxMainBytes) {
+                evictions.increment();
+                return;
+            }
+            int candidateFrequency = sketch.frequency(candidate.hash);
+            while (probationBytes + protectedBytes + candidate.weight > maxMainBytes) {
+                LinkedHashMap<String, CacheEntry> victims = probation.isEmpty() ? protectedEntries : probation;
+                Map.Entry<String, CacheEntry> victim = eldest(victims);
+                if (candidateFrequency <= sketch.frequency(victim.getValue().hash)) {
+                    evictions.increment();
+                    return;
+                }
+                victims.remove(victim.getKey());
+                if (victims == probation) {
+                    probationBytes -= victim.getValue().weight;
+                } else {
+                    protectedBytes -= victim.getValue().weight;
+                }
+                evictions.increment();
+            }
+            probation.put(key, candidate);
+            probationBytes += candidate.weight;
+        }
+
+        private void demoteProtected() {
+            while (protectedBytes > maxProtectedBytes) {
+                Map.Entry<String, CacheEntry> demoted = eldest(protectedEntries);
+                protectedEntries.remove(demoted.getKey());
+                protectedBytes -= demoted.getValue().weight;
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationBytes += demoted.getValue().weight;
+            }
+        }
+
+        private void removeLocked(String key) {
+            CacheEntry removed = window.remove(key);
+            if (removed != null) {
+                windowBytes -= removed.weight;
+                return;
+            }
+            removed = probation.remove(key);
+            if (removed != null) {
+                probationBytes -= removed.weight;
+                return;
+            }
+            removed = protectedEntries.remove(key);
+            if (removed != null) {
+                protectedBytes -= removed.weight;
+            }
+        }
+
+        private Map.Entry<String, CacheEntry> eldest(LinkedHashMap<String, CacheEntry> map) {
+            Iterator<Map.Entry<String, CacheEntry>> iterator = map.entrySet().iterator();
+            return iterator.next();
+        }
+    }
+}
+
+public class CacheStats {
+    private final long hits;
+    private final long negativeHits;
+    private final long misses;
+    private final long evictions;
+    private final long entries;
+    private final long bytes;
+
+    public CacheStats(long hits, long negativeHits, long misses, long evictions, long entries, long bytes) {
+        this.hits = hits;
+        this.negativeHits = negativeHits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    public double hitRate() {
+        long requests = hits + negativeHits + misses;
+        return requests == 0 ? 0 : (double) (hits + negativeHits) / requests;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getNegativeHits() {
+        return negativeHits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hitRate=%.3f hits=%d negativeHits=%d misses=%d evictions=%d entries=%d bytes=%d",
+                hitRate(), hits, negativeHits, misses, evictions, entries, bytes);
+    }
+}
+
+📌 LogStructuredDatabase (Durable Storage)
+Keeps mappings across restarts. Every write is appended to the active segment file through
+a FileChannel by a single writer thread that group-commits: it drains all queued writes,
+writes them in one call and fsyncs once, then acknowledges every caller in the batch.
+Segments roll at maxSegmentBytes; sealed segments are memory-mapped for reads.
+In memory there is only a compact index: packed code -> (segment file, offset).
+
+Record: crc32c(4) type(1) keyLength(2) valueLength(4) expiresAtMillis(8) key value.
+Each segment file starts with the range of replay orders it covers (two longs). Compaction
+merges a run of adjacent segments into a new file covering their whole range, so replay
+order survives compaction and a half-finished compaction is recognisable on restart.
+
+Startup loads the latest index snapshot (written periodically and after compaction) and
+replays only what was appended after it, so restart time does not grow with history.
+Background compaction rewrites segments that are more than half garbage, dropping
+overwritten, deleted and expired records.
+
+Compaction and snapshots run on their own maintenance thread so they never hold up a
+group commit. Compaction only reads sealed segments and moves an index entry with a
+compare-and-set, so a key the writer overwrote meanwhile keeps its new location. The
+snapshot walks the live index without stopping the writer: it first records how far the
+log has been applied, and anything that changes during the walk is replayed from there.
+A failed batch fails only its own callers; the writer keeps going.
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public class LogStructuredDatabase implements Database, AutoCloseable {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int FILE_HEADER_BYTES = 16;
+    private static final int RECORD_HEADER_BYTES = 19;
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_KEY_BYTES = 0xffff; // stored as an unsigned 16-bit length
+    private static final String SNAPSHOT_FILE = "index.snapshot";
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final long maintenanceIntervalNanos;
+    private final LongHashTable index = new LongHashTable(1 << 16);
+    private final Map<String, Long> overflowIndex = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final List<Segment> retired = new ArrayList<>();
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final AtomicInteger nextFileId = new AtomicInteger();
+    private final Thread writer;
+    private final Thread maintainer;
+    private volatile Segment active;
+    private volatile boolean closed;
+
+    public LogStructuredDatabase(Path directory) throws IOException {
+        this(directory, 64L << 20, 60_000);
+    }
+
+    public LogStructuredDatabase(Path directory, long maxSegmentBytes, long maintenanceIntervalMillis)
+            throws IOException {
+        if (maxSegmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments are limited to 2 GiB");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maintenanceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maintenanceIntervalMillis);
+        recover();
+        this.writer = new Thread(this::writeLoop, "url-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        this.maintainer = new Thread(this::maintenanceLoop, "url-log-maintenance");
+        this.maintainer.setDaemon(true);
+        this.maintainer.start();
+    }
+
+    @Override
+    public void saveURLMapping(String shortURL, String longURL) {
+        saveURLMapping(shortURL, longURL, 0);
+    }
+
+    // The expiry is part of the record, so it survives restarts and compaction drops the record.
+    @Override
+    public void saveURLMapping(String shortURL, String longURL, long expiresAtMillis) {
+        append(new PendingWrite(PUT, shortURL, longURL.getBytes(StandardCharsets.UTF_8), expiresAtMillis));
+    }
+
+    @Override
+    public void deleteURLMapping(String shortURL) {
+        append(new PendingWrite(DELETE, shortURL, new byte[0], 0));
+    }
+
+    // One group commit for the whole batch, e.g. a tick's worth of expired codes.
+    @Override
+    public void deleteURLMappings(List<String> shortURLs) {
+        List<PendingWrite> writes = new ArrayList<>(shortURLs.size());
+        for (String shortURL : shortURLs) {
+            writes.add(new PendingWrite(DELETE, shortURL, new byte[0], 0));
+        }
+        appendAll(writes);
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    // An index probe; the record itself stays on disk.
+    @Override
+    public boolean containsMapping(String shortURL) {
+        return indexGet(shortURL) != 0;
+    }
+
+    @Override
+    public void forEachMapping(MappingVisitor visitor) {
+        index.forEach((packed, location) -> visit(Base62.unpack(packed), location, visitor));
+        for (Map.Entry<String, Long> entry : overflowIndex.entrySet()) {
+            visit(entry.getKey(), entry.getValue(), visitor);
+        }
+    }
+
+    private void visit(String shortURL, long location, MappingVisitor visitor) {
+        Segment segment = segments.get(fileIdOf(location));
+        if (segment == null) {
+            return; // compacted away during the walk; the new location is visited or not, weakly
+        }
+        try {
+            ByteBuffer header = segment.read(offsetOf(location), RECORD_HEADER_BYTES);
+            int keyLength = header.getShort(5) & 0xffff;
+            int valueLength = header.getInt(7);
+            long expiresAtMillis = header.getLong(11);
+            if (expiresAtMillis != 0 && expiresAtMillis <= System.currentTimeMillis()) {
+                return;
+            }
+            ByteBuffer value = segment.read(offsetOf(location) + RECORD_HEADER_BYTES + keyLength, valueLength);
+            visitor.visit(shortURL, StandardCharsets.UTF_8.decode(value).toString(), expiresAtMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read mapping for " + shortURL, e);
+        }
+    }
+
+    @Override
+    public String getLongURL(String shortURL) {
+        long location;
+        Segment segment;
+        do {
+            location = indexGet(shortURL);
+            if (location == 0) {
+                return null;
+            }
+            // A segment is only dropped after compaction moved its entries, so re-read the index.
+            segment = segments.get(fileIdOf(location));
+        } while (segment == null);
+        try {
+            ByteBuffer header = segment.read(offsetOf(location), RECORD_HEADER_BYTES);
+            int keyLength = header.getShort(5) & 0xffff;
+            int valueLength = header.getInt(7);
+            long expiresAtMillis = header.getLong(11);
+            if (expiresAtMillis != 0 && expiresAtMillis <= System.currentTimeMillis()) {
+                return null;
+            }
+            ByteBuffer value = segment.read(offsetOf(location) + RECORD_HEADER_BYTES + keyLength, valueLength);
+            return StandardCharsets.UTF_8.decode(value).toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read mapping for " + shortURL, e);
+        }
+    }
+
+    // Queued together, a batch is picked up by the writer as one group commit.
+    @Override
+    public void saveURLMappings(List<String> shortURLs, List<String> longURLs) {
+        List<PendingWrite> writes = new ArrayList<>(shortURLs.size());
+        for (int i = 0; i < shortURLs.size(); i++) {
+            writes.add(new PendingWrite(PUT, shortURLs.get(i), longURLs.get(i).getBytes(StandardCharsets.UTF_8), 0));
+        }
+        appendAll(writes);
+    }
+
+    private void append(PendingWrite write) {
+        appendAll(List.of(write));
+    }
+
+    // Enqueues under the read side of closeLock, so close() cannot slip between the
+    // check and the enqueue and leave a write the writer never sees.
+    private void appendAll(List<PendingWrite> writes) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Database is closed");
+            }
+            queue.addAll(writes);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        try {
+            for (PendingWrite write : writes) {
+                write.durable.join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    // --- writer thread ---
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        try {
+            while (!closed || !queue.isEmpty()) {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    commit(batch);
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            List<PendingWrite> abandoned = new ArrayList<>();
+            queue.drainTo(abandoned);
+            fail(abandoned, new IOException("Log writer was interrupted"));
+        }
+    }
+
+    private static void fail(List<PendingWrite> writes, Exception cause) {
+        for (PendingWrite write : writes) {
+            write.durable.completeExceptionally(cause);
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        long written = -1;
+        try {
+            int batchBytes = 0;
+            for (PendingWrite write : batch) {
+                batchBytes += write.recordLength();
+            }
+            if (active.size > FILE_HEADER_BYTES && active.size + batchBytes > maxSegmentBytes) {
+                rollSegment();
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(batchBytes);
+            for (PendingWrite write : batch) {
+                write.encode(buffer);
+            }
+            buffer.flip();
+            long position = active.size;
+            while (buffer.hasRemaining()) {
+                position += active.channel.write(buffer, position);
+            }
+            active.channel.force(false);
+            written = position;
+
+            // The size moves only after the index, so a snapshot that reads it has seen the index.
+            long offset = active.size;
+            for (PendingWrite write : batch) {
+                apply(write.type, write.key, locationOf(active.fileId, offset), write.recordLength());
+                offset += write.recordLength();
+            }
+            active.size = offset;
+            for (PendingWrite write : batch) {
+                write.durable.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (written > active.size) {
+                active.size = written; // the records are on disk; don't let the next batch overwrite them
+            }
+            fail(batch, e);
+        }
+    }
+
+    private void apply(byte type, String key, long location, int recordLength) {
+        long previous = type == PUT ? indexPut(key, location) : indexRemove(key);
+        if (previous != 0 && previous != location) {
+            Segment old = segments.get(fileIdOf(previous));
+            if (old != null) {
+                old.addGarbage(recordLengthAt(old, offsetOf(previous)));
+            }
+        }
+        if (type == DELETE) {
+            segments.get(fileIdOf(location)).addGarbage(recordLength);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        active.seal();
+        active = createSegment(active.lastOrder + 1);
+    }
+
+    // --- maintenance thread ---
+
+    private void maintenanceLoop() {
+        long deadline = System.nanoTime() + maintenanceIntervalNanos;
+        while (!closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+                continue;
+            }
+            runMaintenance();
+            deadline = System.nanoTime() + maintenanceIntervalNanos;
+        }
+    }
+
+    private void runMaintenance() {
+        try {
+            compact();
+            writeSnapshot();
+        } catch (IOException | RuntimeException e) {
+            // Leave the log as it is; the next maintenance run retries.
+        }
+    }
+
+    // --- compaction ---
+
+    private void compact() throws IOException {
+        for (Segment segment : retired) {
+            segments.remove(segment.fileId);
+            segment.channel.close();
+        }
+        retired.clear();
+
+        // A segment is only mapped once the writer has sealed it; the active one never is.
+        List<Segment> sealed = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment.mapped != null) {
+                sealed.add(segment);
+            }
+        }
+        sealed.sort(Comparator.comparingLong(segment -> segment.firstOrder));
+        long now = System.currentTimeMillis();
+
+        // Merge runs of adjacent segments that are mostly garbage or small, up to one segment of live data.
+        List<Segment> run = new ArrayList<>();
+        long runLiveBytes = 0;
+        boolean runHasGarbage = false;
+        for (int i = 0; i <= sealed.size(); i++) {
+            Segment segment = i < sealed.size() ? sealed.get(i) : null;
+            long payload = segment == null ? 0 : segment.size - FILE_HEADER_BYTES;
+            long garbage = segment == null ? 0 : segment.garbageBytes;
+            long live = payload - garbage;
+            boolean mostlyGarbage = segment != null && garbage * 2 >= payload;
+            boolean candidate = segment != null && (mostlyGarbage || live * 4 < maxSegmentBytes);
+            if (!candidate || runLiveBytes + live > maxSegmentBytes) {
+                if (run.size() > 1 || runHasGarbage) {
+                    rewrite(run, run.get(0) == sealed.get(0), now);
+                }
+                run.clear();
+                runLiveBytes = 0;
+                runHasGarbage = false;
+            }
+            if (candidate) {
+                run.add(segment);
+                runLiveBytes += live;
+                runHasGarbage |= mostlyGarbage;
+            }
+        }
+    }
+
+    private void rewrite(List<Segment> sources, boolean oldest, long nowMillis) throws IOException {
+        int fileId = nextFileId.getAndIncrement();
+        Path temporary = directory.resolve("segment-" + fileId + ".tmp");
+        List<long[]> moved = new ArrayList<>();
+        List<String> movedKeys = new ArrayList<>();
+        long firstOrder = sources.get(0).firstOrder;
+        long lastOrder = sources.get(sources.size() - 1).lastOrder;
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long outOffset = writeFileHeader(out, firstOrder, lastOrder);
+            for (Segment source : sources) {
+                outOffset = copyLive(source, out, outOffset, oldest, nowMillis, moved, movedKeys);
+            }
+            out.force(false);
+        }
+
+        Path target = directory.resolve("segment-" + fileId + ".log");
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        Segment compacted = Segment.open(target, fileId);
+        compacted.seal();
+        segments.put(fileId, compacted);
+        for (int i = 0; i < moved.size(); i++) {
+            long[] move = moved.get(i);
+            if (!indexReplace(movedKeys.get(i), move[0], locationOf(fileId, move[1]))) {
+                // Overwritten while we copied it: the copy is garbage from the start.
+                compacted.addGarbage(recordLengthAt(compacted, move[1]));
+            }
+        }
+        // In-flight lookups may still hold old locations; keep the mappings until the next run.
+        for (Segment source : sources) {
+            retired.add(source);
+            Files.deleteIfExists(source.path);
+        }
+    }
+
+    private long copyLive(Segment source, FileChannel out, long outOffset, boolean oldest, long nowMillis,
+                          List<long[]> moved, List<String> movedKeys) throws IOException {
+        MappedByteBuffer in = source.mapped;
+        long offset = FILE_HEADER_BYTES;
+        while (offset < source.size) {
+            int recordLength = recordLengthAt(source, offset);
+            byte type = in.get((int) offset + 4);
+            String key = readKey(in, (int) offset);
+            long expiresAtMillis = in.getLong((int) offset + 11);
+            long location = locationOf(source.fileId, offset);
+            boolean keep;
+            if (type == PUT) {
+                keep = indexGet(key) == location;
+                if (keep && expiresAtMillis != 0 && expiresAtMillis <= nowMillis) {
+                    indexReplace(key, location, 0);
+                    keep = false;
+                }
+            } else {
+                // Tombstones must outlive every older segment that may still hold the key.
+                keep = !oldest && indexGet(key) == 0;
+            }
+            if (keep) {
+                ByteBuffer record = in.slice((int) offset, recordLength);
+                while (record.hasRemaining()) {
+                    outOffset += out.write(record, outOffset);
+                }
+                if (type == PUT) {
+                    moved.add(new long[] {location, outOffset - recordLength});
+                    movedKeys.add(key);
+                }
+            }
+            offset += recordLength;
+        }
+        return outOffset;
+    }
+
+    // --- snapshot and recovery ---
+
+    // Taken while the writer keeps going: the covered position is read first, so every
+    // record before it is already in the index, and recovery replays everything after it
+    // over whatever the walk saw.
+    private void writeSnapshot() throws IOException {
+        Segment covered = active;
+        long coveredSize = covered.size;
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            buffer.putInt(covered.fileId).putLong(coveredSize);
+            List<Segment> live = new ArrayList<>(segments.values());
+            live.removeAll(retired);
+            buffer.putInt(live.size());
+            for (Segment segment : live) {
+                buffer = flushIfFull(out, buffer, 12);
+                buffer.putInt(segment.fileId).putLong(segment.garbageBytes);
+            }
+            ByteBuffer[] holder = {buffer};
+            IOException[] failure = new IOException[1];
+            index.forEach((key, location) -> {
+                try {
+                    holder[0] = flushIfFull(out, holder[0], 17);
+                    holder[0].put((byte) 1).putLong(key).putLong(location);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            buffer = holder[0];
+            for (Map.Entry<String, Long> entry : overflowIndex.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                buffer = flushIfFull(out, buffer, 11 + key.length);
+                buffer.put((byte) 2).putShort((short) key.length).put(key).putLong(entry.getValue());
+            }
+            buffer = flushIfFull(out, buffer, 1);
+            buffer.put((byte) 0);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Flushes unless the next entry of the given size still fits; grows for an oversized one.
+    private static ByteBuffer flushIfFull(FileChannel out, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() < needed) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            if (buffer.capacity() < needed) {
+                buffer = ByteBuffer.allocate(needed);
+            }
+        }
+        return buffer;
+    }
+
+    private void recover() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(path);
+                } else if (name.startsWith("segment-") && name.endsWith(".log")) {
+                    int fileId = Integer.parseInt(name.substring(8, name.length() - 4));
+                    found.add(Segment.open(path, fileId));
+                    nextFileId.accumulateAndGet(fileId + 1, Math::max);
+                }
+            }
+        }
+        // A crash between a compaction's rename and its deletes leaves the merged file next to
+        // its sources; a file whose orders are covered by a newer file is superseded by it.
+        List<Segment> superseded = new ArrayList<>();
+        for (Segment segment : found) {
+            for (Segment other : found) {
+                if (other.fileId > segment.fileId && other.firstOrder <= segment.firstOrder
+                        && other.lastOrder >= segment.lastOrder) {
+                    superseded.add(segment);
+                    break;
+                }
+            }
+        }
+        for (Segment segment : superseded) {
+            found.remove(segment);
+            segment.channel.close();
+            Files.delete(segment.path);
+        }
+        found.sort(Comparator.comparingLong(segment -> segment.firstOrder));
+        for (Segment segment : found) {
+            segments.put(segment.fileId, segment);
+        }
+
+        int snapshotFileId = -1;
+        long snapshotOffset = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            long[] covered = loadSnapshot(snapshot);
+            if (covered != null) {
+                snapshotFileId = (int) covered[0];
+                snapshotOffset = covered[1];
+            }
+        }
+
+        boolean replaying = snapshotFileId < 0;
+        for (Segment segment : found) {
+            long from = FILE_HEADER_BYTES;
+            if (!replaying) {
+                if (segment.fileId != snapshotFileId) {
+                    continue;
+                }
+                replaying = true;
+                from = snapshotOffset;
+            }
+            long validEnd = replay(segment, from);
+            if (validEnd < segment.channel.size()) {
+                segment.channel.truncate(validEnd);
+            }
+            segment.size = validEnd;
+        }
+
+        if (found.isEmpty()) {
+            active = createSegment(0);
+        } else {
+            active = found.get(found.size() - 1);
+            for (Segment segment : found) {
+                if (segment != active) {
+                    segment.seal();
+                }
+            }
+        }
+    }
+
+    // Returns {fileId, offset} covered by the snapshot, or null if it refers to files that
+    // no longer exist (e.g. a compaction finished after it was taken).
+    private long[] loadSnapshot(Path snapshot) throws IOException {
+        try (FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            int fileId = buffer.getInt();
+            long offset = buffer.getLong();
+            int segmentCount = buffer.getInt();
+            long[][] garbage = new long[segmentCount][];
+            for (int i = 0; i < segmentCount; i++) {
+                garbage[i] = new long[] {buffer.getInt(), buffer.getLong()};
+                if (!segments.containsKey((int) garbage[i][0])) {
+                    return null;
+                }
+            }
+            if (!segments.containsKey(fileId)) {
+                return null;
+            }
+
+            List<Object[]> entries = new ArrayList<>();
+            byte kind;
+            while ((kind = buffer.get()) != 0) {
+                if (kind == 1) {
+                    entries.add(new Object[] {buffer.getLong(), null, buffer.getLong()});
+                } else {
+                    byte[] key = new byte[buffer.getShort() & 0xffff];
+                    buffer.get(key);
+                    entries.add(new Object[] {0L, new String(key, StandardCharsets.UTF_8), buffer.getLong()});
+                }
+            }
+            for (Object[] entry : entries) {
+                long location = (Long) entry[2];
+                if (!segments.containsKey(fileIdOf(location))) {
+                    index.forEach((key, value) -> index.remove(key));
+                    overflowIndex.clear();
+                    return null;
+                }
+                if (entry[1] == null) {
+                    index.put((Long) entry[0], location);
+                } else {
+                    overflowIndex.put((String) entry[1], location);
+                }
+            }
+            for (long[] segmentGarbage : garbage) {
+                segments.get((int) segmentGarbage[0]).addGarbage(segmentGarbage[1]);
+            }
+            return new long[] {fileId, offset};
+        } catch (RuntimeException e) {
+            // Unreadable snapshot: fall back to a full replay.
+            index.forEach((key, value) -> index.remove(key));
+            overflowIndex.clear();
+            return null;
+        }
+    }
+
+    // Applies every intact record from the given offset; returns the end of the last one.
+    private long replay(Segment segment, long from) throws IOException {
+        long size = segment.channel.size();
+        MappedByteBuffer map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long offset = from;
+        CRC32C crc = new CRC32C();
+        while (offset + RECORD_HEADER_BYTES <= size) {
+            int position = (int) offset;
+            int keyLength = map.getShort(position + 5) & 0xffff;
+            int valueLength = map.getInt(position + 7);
+            long end = offset + RECORD_HEADER_BYTES + keyLength + valueLength;
+            if (valueLength < 0 || end > size) {
+                break;
+            }
+            crc.reset();
+            crc.update(map.slice(position + 4, (int) (end - offset - 4)));
+            if ((int) crc.getValue() != map.getInt(position)) {
+                break;
+            }
+            apply(map.get(position + 4), readKey(map, position), locationOf(segment.fileId, offset),
+                    (int) (end - offset));
+            offset = end;
+        }
+        return offset;
+    }
+
+    // --- helpers ---
+
+    private Segment createSegment(long order) throws IOException {
+        int fileId = nextFileId.getAndIncrement();
+        Path path = directory.resolve("segment-" + fileId + ".log");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeFileHeader(channel, order, order);
+            channel.force(true);
+        }
+        Segment segment = Segment.open(path, fileId);
+        segment.size = FILE_HEADER_BYTES;
+        segments.put(fileId, segment);
+        return segment;
+    }
+
+    private static long writeFileHeader(FileChannel channel, long firstOrder, long lastOrder) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).putLong(firstOrder).putLong(lastOrder).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        return FILE_HEADER_BYTES;
+    }
+
+    private static int recordLengthAt(Segment segment, long offset) {
+        try {
+            ByteBuffer header = segment.read(offset, RECORD_HEADER_BYTES);
+            return RECORD_HEADER_BYTES + (header.getShort(5) & 0xffff) + header.getInt(7);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String readKey(ByteBuffer map, int position) {
+        int keyLength = map.getShort(position + 5) & 0xffff;
+        return StandardCharsets.UTF_8.decode(map.slice(position + RECORD_HEADER_BYTES, keyLength)).toString();
+    }
+
+    private long indexGet(String key) {
+        long packed = Base62.pack(key);
+        if (packed != 0) {
+            return index.get(packed);
+        }
+        Long location = overflowIndex.get(key);
+        return location == null ? 0 : location;
+    }
+
+    private long indexPut(String key, long location) {
+        long packed = Base62.pack(key);
+        if (packed != 0) {
+            return index.put(packed, location);
+        }
+        Long previous = overflowIndex.put(key, location);
+        return previous == null ? 0 : previous;
+    }
+
+    private long indexRemove(String key) {
+        long packed = Base62.pack(key);
+        if (packed != 0) {
+            return index.remove(packed);
+        }
+        Long previous = overflowIndex.remove(key);
+        return previous == null ? 0 : previous;
+    }
+
+    // Moves (or, with 0, removes) an entry only if it still points where compaction found it.
+    private boolean indexReplace(String key, long expected, long location) {
+        long packed = Base62.pack(key);
+        if (packed != 0) {
+            return index.replace(packed, expected, location);
+        }
+        return location == 0 ? overflowIndex.remove(key, expected) : overflowIndex.replace(key, expected, location);
+    }
+
+    private static long locationOf(int fileId, long offset) {
+        return ((long) (fileId + 1) << 32) | offset;
+    }
+
+    private static int fileIdOf(long location) {
+        return (int) (location >>> 32) - 1;
+    }
+
+    private static long offsetOf(long location) {
+        return location & 0xffffffffL;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        LockSupport.unpark(maintainer);
+        try {
+            maintainer.join();
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        runMaintenance();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    private static class PendingWrite {
+        final byte type;
+        final String key;
+        final byte[] keyBytes;
+        final byte[] value;
+        final long expiresAtMillis;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        PendingWrite(byte type, String key, byte[] value, long expiresAtMillis) {
+            this.type = type;
+            this.key = key;
+            this.keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (keyBytes.length > MAX_KEY_BYTES) {
+                throw new IllegalArgumentException("Short URL is longer than " + MAX_KEY_BYTES + " bytes");
+            }
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        int recordLength() {
+            return RECORD_HEADER_BYTES + keyBytes.length + value.length;
+        }
+
+        void encode(ByteBuffer buffer) {
+            int start = buffer.position();
+            buffer.putInt(0).put(type).putShort((short) keyBytes.length).putInt(value.length)
+                    .putLong(expiresAtMillis).put(keyBytes).put(value);
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+            buffer.putInt(start, (int) crc.getValue());
+        }
+    }
+
+    private static class Segment {
+        final Path path;
+        final int fileId;
+        final long firstOrder;
+        final long lastOrder;
+        final FileChannel channel;
+        volatile MappedByteBuffer mapped;
+        volatile long size;
+        volatile long garbageBytes;
+
+        private Segment(Path path, int fileId, long firstOrder, long lastOrder, FileChannel channel) {
+            this.path = path;
+            this.fileId = fileId;
+            this.firstOrder = firstOrder;
+            this.lastOrder = lastOrder;
+            this.channel = channel;
+        }
+
+        static Segment open(Path path, int fileId) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            Segment segment = new Segment(path, fileId, header.getLong(), header.getLong(), channel);
+            segment.size = channel.size();
+            return segment;
+        }
+
+        // Both the writer and compaction add garbage to a segment.
+        synchronized void addGarbage(long bytes) {
+            garbageBytes += bytes;
+        }
+
+        void seal() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        ByteBuffer read(long offset, int length) throws IOException {
+            MappedByteBuffer map = mapped;
+            if (map != null) {
+                return map.slice((int) offset, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of segment " + fileId);
+                }
+            }
+            return buffer.flip();
+        }
+    }
+}
+
+📌 ExpiryWheel (URL Expiry)
+Expires short URLs with a hierarchical timing wheel instead of scanning the store or
+scheduling one task per URL. Four levels of 64 slots each; level 0 slots are one tick
+wide, each higher level's slots are 64x wider, so one wheel covers 64^4 ticks (about
+194 days at 1s ticks). A timer sits in the coarsest level that still resolves it and is
+cascaded down as its slot comes round, so insertion and expiry are O(1) amortized.
+
+Callers only enqueue timers; the ticker thread owns the wheel, so scheduling never takes
+a lock. Deadlines are also kept in a LongHashTable so lookups can reject an expired code
+before its slot fires. A timer whose deadline was changed or cancelled is ignored when it fires.
+
+Each tick's expired codes go to the listener as one batch (one group commit on
+LogStructuredDatabase), delivered after the wheel's lock is released so a slow store never
+holds up placing or cascading other timers. The deadline is only dropped once the listener
+has deleted the mapping. A failed batch is retried with exponential backoff, up to
+MAX_ATTEMPTS times; after that the code stays marked expired for lookups and the mapping is
+left to the store (LogStructuredDatabase compaction drops expired records anyway).
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class ExpiryWheel implements AutoCloseable {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final long MAX_SPAN = 1L << (LEVELS * SLOT_BITS);
+    private static final int MAX_ATTEMPTS = 8;
+
+    public interface ExpiryListener {
+        void expired(List<String> shortURLs);
+    }
+
+    private final long tickMillis;
+    private final ExpiryListener listener;
+    private final LongHashTable deadlines = new LongHashTable(1 << 10);
+    private final Map<String, Long> overflowDeadlines = new ConcurrentHashMap<>();
+    private final Queue<Timer> pending = new ConcurrentLinkedQueue<>();
+    private final List<Timer>[][] wheel;
+    private List<Timer> due = new ArrayList<>();
+    private long currentTick;
+    private volatile Thread ticker;
+    private volatile boolean closed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ExpiryWheel(long tickMillis, ExpiryListener listener) {
+        this.tickMillis = tickMillis;
+        this.listener = listener;
+        this.wheel = new List[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new ArrayList<>();
+            }
+        }
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    public void schedule(String shortURL, long expiresAtMillis) {
+        long packed = Base62.pack(shortURL);
+        if (packed != 0) {
+            deadlines.put(packed, expiresAtMillis);
+        } else {
+            overflowDeadlines.put(shortURL, expiresAtMillis);
+        }
+        pending.add(new Timer(shortURL, expiresAtMillis, expiresAtMillis, 0));
+        if (ticker == null) {
+            startTicker();
+        }
+    }
+
+    public void cancel(String shortURL) {
+        long packed = Base62.pack(shortURL);
+        if (packed != 0) {
+            deadlines.remove(packed);
+        } else {
+            overflowDeadlines.remove(shortURL);
+        }
+    }
+
+    public boolean isExpired(String shortURL) {
+        long deadline = deadlineOf(shortURL);
+        return deadline != 0 && deadline <= System.currentTimeMillis();
+    }
+
+    // Runs every tick up to nowMillis. Called by the ticker thread; exposed for callers that
+    // drive time themselves. The listener runs after the wheel's lock is released.
+    public void advanceTo(long nowMillis) {
+        List<Timer> expired;
+        synchronized (this) {
+            long targetTick = nowMillis / tickMillis;
+            while (currentTick < targetTick) {
+                currentTick++;
+                drainPending();
+                for (int level = 1; level < LEVELS && (currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0; level++) {
+                    cascade(level);
+                }
+                List<Timer> slot = wheel[0][(int) (currentTick & (SLOTS - 1))];
+                for (Timer timer : slot) {
+                    fire(timer);
+                }
+                slot.clear();
+            }
+            drainPending();
+            expired = due;
+            due = new ArrayList<>();
+        }
+        if (!expired.isEmpty()) {
+            expire(expired);
+        }
+    }
+
+    private void drainPending() {
+        Timer timer;
+        while ((timer = pending.poll()) != null) {
+            place(timer);
+        }
+    }
+
+    private void cascade(int level) {
+        List<Timer> slot = wheel[level][(int) ((currentTick >>> (level * SLOT_BITS)) & (SLOTS - 1))];
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<Timer> timers = new ArrayList<>(slot);
+        slot.clear();
+        for (Timer timer : timers) {
+            place(timer);
+        }
+    }
+
+    private void place(Timer timer) {
+        // Round up so a timer never fires before its deadline.
+        long deadlineTick = (timer.dueAtMillis + tickMillis - 1) / tickMillis;
+        long delta = deadlineTick - currentTick;
+        if (delta <= 0) {
+            fire(timer);
+            return;
+        }
+        if (delta >= MAX_SPAN) {
+            // Parked in the farthest top-level slot; it is re-placed when that slot cascades.
+            deadlineTick = currentTick + MAX_SPAN - 1;
+            delta = MAX_SPAN - 1;
+        }
+        int level = 0;
+        while (delta >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        wheel[level][(int) ((deadlineTick >>> (level * SLOT_BITS)) & (SLOTS - 1))].add(timer);
+    }
+
+    private void fire(Timer timer) {
+        if (deadlineOf(timer.shortURL) == timer.expiresAtMillis) {
+            due.add(timer);
+        }
+    }
+
+    // The store entries go first: until they are gone the deadlines must stay, or a lookup in
+    // between would find a mapping with nothing left saying it expired.
+    private void expire(List<Timer> timers) {
+        List<String> shortURLs = new ArrayList<>(timers.size());
+        for (Timer timer : timers) {
+            shortURLs.add(timer.shortURL);
+        }
+        try {
+            listener.expired(shortURLs);
+        } catch (RuntimeException e) {
+            long now = System.currentTimeMillis();
+            for (Timer timer : timers) {
+                int attempts = timer.attempts + 1;
+                if (attempts < MAX_ATTEMPTS) {
+                    long backoff = tickMillis << attempts;
+                    pending.add(new Timer(timer.shortURL, timer.expiresAtMillis, now + backoff, attempts));
+                }
+            }
+            return;
+        }
+        for (Timer timer : timers) {
+            if (deadlineOf(timer.shortURL) == timer.expiresAtMillis) {
+                cancel(timer.shortURL);
+            }
+        }
+    }
+
+    private long deadlineOf(String shortURL) {
+        long packed = Base62.pack(shortURL);
+        if (packed != 0) {
+            return deadlines.get(packed);
+        }
+        Long deadline = overflowDeadlines.get(shortURL);
+        return deadline == null ? 0 : deadline;
+    }
+
+    private synchronized void startTicker() {
+        if (ticker != null || closed) {
+            return;
+        }
+        ticker = Thread.ofPlatform().daemon().name("url-expiry-wheel").start(() -> {
+            while (!closed) {
+                LockSupport.parkNanos(tickMillis * 1_000_000);
+                if (!closed) {
+                    advanceTo(System.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    // Waits for a tick in progress to finish, so the store can be closed right after.
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            closed = true;
+            current = ticker;
+        }
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Timer {
+        final String shortURL;
+        final long expiresAtMillis;
+        final long dueAtMillis; // the deadline, or when a failed delete is retried
+        final int attempts;
+
+        Timer(String shortURL, long expiresAtMillis, long dueAtMillis, int attempts) {
+            this.shortURL = shortURL;
+            this.expiresAtMillis = expiresAtMillis;
+            this.dueAtMillis = dueAtMillis;
+            this.attempts = attempts;
+        }
+    }
+}
+
+📌 HyperLogLog (Unique Visitor Estimate)
+Estimates distinct visitors in 2^precision one-byte registers instead of a set of ids.
+Standard error is about 1.04 / sqrt(2^precision): 0.8% at 14 bits, 6.5% at 8 bits.
+Callers pass an already well-mixed 64-bit hash.
+
+public class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Precision must be between 4 and 18: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // The guard bit caps the run length when every remaining bit is zero.
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros); // linear counting for small cardinalities
+        }
+        return Math.round(estimate);
+    }
+}
+
+📌 ClickAnalytics (Analytics)
+Counts redirects without slowing them down. A redirect only appends (code, visitor hash,
+time) to a ring buffer owned by the calling thread: no locks, no CAS, no shared cache line
+with other request threads. If a ring is full the click is dropped and counted, never waited on.
+
+A single aggregator thread drains every ring and folds clicks into per-code totals, 60
+one-minute buckets (the sliding last hour) and HyperLogLogs of unique visitors, globally
+and per code. It also refreshes a top-N list for the last hour once a second, so
+topURLsLastHour is a read of pre-aggregated data.
+
+Rings are per thread, so redirects should run on a bounded pool (such as the HTTP
+server's event-loop threads), not on one virtual thread per request. A dead thread's ring is
+unregistered once drained and kept for reuse by the next new thread (up to a few spares).
+
+Per-code stats cost a few hundred bytes each (mostly the HyperLogLog). Once more than
+maxTrackedCodes are tracked, codes without a click in the last hour are evicted, at most
+once a minute; if such a code is clicked again its counts start over.
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class ClickAnalytics implements AutoCloseable {
+    private static final int WINDOW_MINUTES = 60;
+    private static final int TOP_CAPACITY = 100;
+    private static final long TOP_REFRESH_MILLIS = 1_000;
+    private static final int MAX_SPARE_RINGS = 8;
+
+    private final int ringCapacity;
+    private final int perCodePrecision;
+    private final int maxTrackedCodes;
+    private final List<ClickRing> rings = new CopyOnWriteArrayList<>();
+    private final Queue<ClickRing> spareRings = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ClickRing> localRing;
+    private final LongAdder droppedClicks = new LongAdder();
+    private final HyperLogLog uniqueVisitors = new HyperLogLog(14);
+    private final Thread aggregator;
+    private volatile boolean closed;
+
+    // Owned by the aggregator; other threads only read CodeStats' volatile fields.
+    private final LongHashTable statsIndex = new LongHashTable(1 << 12);
+    private volatile CodeStats[] stats = new CodeStats[1 << 12];
+    private int statsCount;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private long lastEvictionMinute;
+    private final Map<String, CodeStats> overflowStats = new ConcurrentHashMap<>();
+    private final ArrayDeque<MinuteBucket> minutes = new ArrayDeque<>();
+    private final Set<CodeStats> activeLastHour = new HashSet<>();
+    private volatile long totalClicks;
+    private volatile List<ClickStat> topLastHour = List.of();
+    private long topRefreshedAtMillis;
+
+    public ClickAnalytics() {
+        this(4096, 8, 100_000);
+    }
+
+    public ClickAnalytics(int ringCapacity, int perCodePrecision, int maxTrackedCodes) {
+        if (Integer.bitCount(ringCapacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + ringCapacity);
+        }
+        this.ringCapacity = ringCapacity;
+        this.perCodePrecision = perCodePrecision;
+        this.maxTrackedCodes = maxTrackedCodes;
+        this.localRing = ThreadLocal.withInitial(() -> {
+            ClickRing ring = spareRings.poll();
+            if (ring == null) {
+                ring = new ClickRing(this.ringCapacity);
+            }
+            ring.owner = new WeakReference<>(Thread.currentThread());
+            rings.add(ring);
+            return ring;
+        });
+        this.aggregator = Thread.ofPlatform().daemon().name("click-aggregator").start(this::aggregateLoop);
+    }
+
+    // Redirect path: a handful of plain stores into this thread's ring. A null visitorId
+    // counts towards clicks but not unique visitors.
+    public void recordClick(String code, String visitorId) {
+        ClickRing ring = localRing.get();
+        long visitorHash = visitorId == null ? 0 : visitorHash(visitorId);
+        if (!ring.offer(code, visitorHash, System.currentTimeMillis())) {
+            droppedClicks.increment();
+        } else if (ring.atWakeMark()) {
+            LockSupport.unpark(aggregator); // bursts outrun the polling interval
+        }
+    }
+
+    // 64-bit hash of the visitor id's UTF-8 bytes, eight at a time, mixed the way
+    // DedupIndex.fingerprint mixes URLs; String.hashCode's 32 bits would make distinct
+    // visitors collide long before the HyperLogLogs lose precision. The bytes are encoded
+    // on the fly so the redirect path allocates nothing. Never 0, which means anonymous.
+    static long visitorHash(String visitorId) {
+        long hash = 0x9e3779b97f4a7c15L;
+        long block = 0;
+        int filled = 0;
+        long length = 0;
+        for (int i = 0; i < visitorId.length(); ) {
+            int codePoint = visitorId.codePointAt(i);
+            i += Character.charCount(codePoint);
+            long encoded;
+            int bytes;
+            if (codePoint < 0x80) {
+                encoded = codePoint;
+                bytes = 1;
+            } else if (codePoint < 0x800) {
+                encoded = (0xc0 | codePoint >>> 6) | (0x80 | codePoint & 0x3f) << 8;
+                bytes = 2;
+            } else if (codePoint < 0x10000) {
+                encoded = (0xe0 | codePoint >>> 12) | (0x80 | codePoint >>> 6 & 0x3f) << 8
+                        | (0x80 | codePoint & 0x3f) << 16;
+                bytes = 3;
+            } else {
+                encoded = (0xf0 | codePoint >>> 18) | (0x80 | codePoint >>> 12 & 0x3f) << 8
+                        | (0x80 | codePoint >>> 6 & 0x3f) << 16 | (long) (0x80 | codePoint & 0x3f) << 24;
+                bytes = 4;
+            }
+            for (int b = 0; b < bytes; b++, encoded >>>= 8) {
+                block |= (encoded & 0xff) << (filled << 3);
+                if (++filled == 8) {
+                    hash = Long.rotateLeft(hash ^ Base62.mix(block), 27) * 0x9e3779b97f4a7c15L;
+                    block = 0;
+                    filled = 0;
+                }
+            }
+            length += bytes;
+        }
+        hash = Long.rotateLeft(hash ^ Base62.mix(block ^ length << 56), 31) * 0xc2b2ae3d27d4eb4fL;
+        hash = Base62.mix(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    public long getClickCount(String code) {
+        CodeStats codeStats = statsFor(code);
+        return codeStats == null ? 0 : codeStats.total;
+    }
+
+    public long getClicksLastHour(String code) {
+        CodeStats codeStats = statsFor(code);
+        return codeStats == null ? 0 : codeStats.lastHour;
+    }
+
+    public long getUniqueVisitors(String code) {
+        CodeStats codeStats = statsFor(code);
+        return codeStats == null ? 0 : codeStats.visitors.estimate();
+    }
+
+    public long getUniqueVisitors() {
+        return uniqueVisitors.estimate();
+    }
+
+    public long getTotalClicks() {
+        return totalClicks;
+    }
+
+    public long getDroppedClicks() {
+        return droppedClicks.sum();
+    }
+
+    public List<ClickStat> topURLsLastHour(int n) {
+        List<ClickStat> top = topLastHour;
+        return top.subList(0, Math.min(n, top.size()));
+    }
+
+    // Folds everything recorded so far and refreshes the top list; the aggregator does this
+    // continuously, callers use it when they need read-your-clicks.
+    public synchronized void flush() {
+        drain();
+        refreshTop(System.currentTimeMillis());
+    }
+
+    private void aggregateLoop() {
+        while (!closed) {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                drain();
+                expireMinutes(now / 60_000);
+                evictIdle(now / 60_000);
+                if (now - topRefreshedAtMillis >= TOP_REFRESH_MILLIS) {
+                    refreshTop(now);
+                }
+            }
+            LockSupport.parkNanos(50_000_000);
+        }
+    }
+
+    private void drain() {
+        for (ClickRing ring : rings) {
+            long head = ring.head.get();
+            long tail = ring.tail.get();
+            for (long sequence = head; sequence < tail; sequence++) {
+                int slot = (int) sequence & ring.mask;
+                fold(ring.codes[slot], ring.overflowCodes[slot], ring.visitors[slot], ring.times[slot]);
+                ring.overflowCodes[slot] = null;
+            }
+            ring.head.lazySet(tail);
+            Thread owner = ring.owner.get();
+            if ((owner == null || !owner.isAlive()) && ring.tail.get() == tail) {
+                rings.remove(ring);
+                if (spareRings.size() < MAX_SPARE_RINGS) {
+                    spareRings.add(ring);
+                }
+            }
+        }
+    }
+
+    private void fold(long packedCode, String overflowCode, long visitorHash, long timeMillis) {
+        CodeStats codeStats = overflowCode != null ? overflowStatsFor(overflowCode) : statsFor(packedCode);
+        codeStats.total++;
+        if (visitorHash != 0) {
+            codeStats.visitors.add(visitorHash);
+            uniqueVisitors.add(visitorHash);
+        }
+        totalClicks++;
+
+        long minute = timeMillis / 60_000;
+        MinuteBucket bucket = bucketFor(minute);
+        if (bucket != null) {
+            bucket.counts.computeIfAbsent(codeStats, key -> new int[1])[0]++;
+            if (codeStats.lastHour++ == 0) {
+                activeLastHour.add(codeStats);
+            }
+        }
+    }
+
+    private MinuteBucket bucketFor(long minute) {
+        MinuteBucket newest = minutes.peekLast();
+        if (newest == null || minute > newest.minute) {
+            MinuteBucket bucket = new MinuteBucket(minute);
+            minutes.addLast(bucket);
+            expireMinutes(minute);
+            return bucket;
+        }
+        // A late click from a slow ring: walk back to its minute, if still in the window.
+        for (var it = minutes.descendingIterator(); it.hasNext(); ) {
+            MinuteBucket bucket = it.next();
+            if (bucket.minute == minute) {
+                return bucket;
+            }
+            if (bucket.minute < minute) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private void expireMinutes(long currentMinute) {
+        MinuteBucket oldest;
+        while ((oldest = minutes.peekFirst()) != null && oldest.minute <= currentMinute - WINDOW_MINUTES) {
+            minutes.removeFirst();
+            for (Map.Entry<CodeStats, int[]> entry : oldest.counts.entrySet()) {
+                CodeStats codeStats = entry.getKey();
+                codeStats.lastHour -= entry.getValue()[0];
+                if (codeStats.lastHour == 0) {
+                    activeLastHour.remove(codeStats);
+                }
+            }
+        }
+    }
+
+    private void evictIdle(long currentMinute) {
+        if (statsCount - freeCount + overflowStats.size() <= maxTrackedCodes || currentMinute == lastEvictionMinute) {
+            return;
+        }
+        lastEvictionMinute = currentMinute;
+        CodeStats[] current = stats;
+        for (int i = 0; i < statsCount; i++) {
+            CodeStats codeStats = current[i];
+            if (codeStats != null && codeStats.lastHour == 0) {
+                statsIndex.remove(Base62.pack(codeStats.code));
+                current[i] = null;
+                if (freeCount == freeSlots.length) {
+                    freeSlots = java.util.Arrays.copyOf(freeSlots, freeCount * 2);
+                }
+                freeSlots[freeCount++] = i;
+            }
+        }
+        overflowStats.values().removeIf(codeStats -> codeStats.lastHour == 0);
+    }
+
+    private void refreshTop(long nowMillis) {
+        topRefreshedAtMillis = nowMillis;
+        PriorityQueue<CodeStats> heap = new PriorityQueue<>(TOP_CAPACITY + 1,
+                (a, b) -> Long.compare(a.lastHour, b.lastHour));
+        for (CodeStats codeStats : activeLastHour) {
+            if (heap.size() < TOP_CAPACITY) {
+                heap.add(codeStats);
+            } else if (codeStats.lastHour > heap.peek().lastHour) {
+                heap.poll();
+                heap.add(codeStats);
+            }
+        }
+        List<ClickStat> top = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            CodeStats codeStats = heap.poll();
+            top.add(new ClickStat(codeStats.code, codeStats.lastHour, codeStats.total));
+        }
+        java.util.Collections.reverse(top);
+        topLastHour = List.copyOf(top);
+    }
+
+    private CodeStats statsFor(String code) {
+        long packed = Base62.pack(code);
+        if (packed == 0) {
+            return overflowStats.get(code);
+        }
+        long slot = statsIndex.get(packed);
+        if (slot == 0) {
+            return null;
+        }
+        // The slot may have been evicted, and even reused, since the index was read.
+        CodeStats codeStats = stats[(int) slot - 1];
+        return codeStats != null && codeStats.code.equals(code) ? codeStats : null;
+    }
+
+    // Aggregator only.
+    private CodeStats statsFor(long packedCode) {
+        long slot = statsIndex.get(packedCode);
+        if (slot != 0) {
+            return stats[(int) slot - 1];
+        }
+        CodeStats[] current = stats;
+        int index;
+        if (freeCount > 0) {
+            index = freeSlots[--freeCount];
+        } else {
+            if (statsCount == current.length) {
+                current = java.util.Arrays.copyOf(current, current.length * 2);
+            }
+            index = statsCount++;
+        }
+        CodeStats codeStats = new CodeStats(Base62.unpack(packedCode), perCodePrecision);
+        current[index] = codeStats;
+        stats = current;
+        statsIndex.put(packedCode, index + 1);
+        return codeStats;
+    }
+
+    private CodeStats overflowStatsFor(String code) {
+        return overflowStats.computeIfAbsent(code, key -> new CodeStats(key, perCodePrecision));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(aggregator);
+        try {
+            aggregator.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private static class ClickRing {
+        final long[] codes;
+        final String[] overflowCodes;
+        final long[] visitors;
+        final long[] times;
+        final int mask;
+        // Weak, so a dead thread isn't kept reachable by its ring; set before the ring is published.
+        WeakReference<Thread> owner;
+        final AtomicLong tail = new AtomicLong(); // written by the owner thread only
+        final AtomicLong head = new AtomicLong(); // written by the aggregator only
+        long cachedHead;
+
+        ClickRing(int capacity) {
+            this.codes = new long[capacity];
+            this.overflowCodes = new String[capacity];
+            this.visitors = new long[capacity];
+            this.times = new long[capacity];
+            this.mask = capacity - 1;
+        }
+
+        boolean offer(String code, long visitorHash, long timeMillis) {
+            long sequence = tail.get();
+            if (sequence - cachedHead > mask) {
+                cachedHead = head.get();
+                if (sequence - cachedHead > mask) {
+                    return false;
+                }
+            }
+            int slot = (int) sequence & mask;
+            long packed = Base62.pack(code);
+            codes[slot] = packed;
+            overflowCodes[slot] = packed == 0 ? code : null;
+            visitors[slot] = visitorHash;
+            times[slot] = timeMillis;
+            tail.lazySet(sequence + 1); // publishes the slot to the aggregator
+            return true;
+        }
+
+        // True every half ring of clicks, so one unpark is amortized over thousands of offers.
+        boolean atWakeMark() {
+            return (tail.get() & (mask >> 1)) == 0;
+        }
+    }
+
+    private static class CodeStats {
+        final String code;
+        final HyperLogLog visitors;
+        volatile long total;
+        volatile long lastHour;
+
+        CodeStats(String code, int precision) {
+            this.code = code;
+            this.visitors = new HyperLogLog(precision);
+        }
+    }
+
+    private static class MinuteBucket {
+        final long minute;
+        final Map<CodeStats, int[]> counts = new HashMap<>();
+
+        MinuteBucket(long minute) {
+            this.minute = minute;
+        }
+    }
+}
+
+public class ClickStat {
+    private final String code;
+    private final long clicksLastHour;
+    private final long totalClicks;
+
+    public ClickStat(String code, long clicksLastHour, long totalClicks) {
+        this.code = code;
+        this.clicksLastHour = clicksLastHour;
+        this.totalClicks = totalClicks;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public long getClicksLastHour() {
+        return clicksLastHour;
+    }
+
+    public long getTotalClicks() {
+        return totalClicks;
+    }
+
+    @Override
+    public String toString() {
+        return code + "=" + clicksLastHour;
+    }
+}
+
+📌 BloomFilter (Dedup Fast Path)
+Answers "definitely never seen" for a 64-bit fingerprint without touching the dedup table.
+Blocked layout: all k = 7 probe bits of a key fall in one 512-bit block (one cache line),
+so a lookup costs a single cache miss. Bits are only ever set, with a CAS on the word, so
+concurrent adds need no lock. At 10 bits per key the false-positive rate is at most about
+1%; rounding the block count up to a power of two usually leaves it well below that.
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class BloomFilter {
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int PROBES = 7;
+
+    private final AtomicLongArray words;
+    private final int blockMask;
+
+    public BloomFilter(long expectedInsertions, int bitsPerKey) {
+        long blocks = Math.max(1, (expectedInsertions * bitsPerKey + 511) / 512);
+        int blockCount = Integer.highestOneBit((int) Math.min(blocks, 1 << 26));
+        if (blockCount < blocks && blockCount < 1 << 26) {
+            blockCount <<= 1;
+        }
+        this.words = new AtomicLongArray(blockCount * WORDS_PER_BLOCK);
+        this.blockMask = blockCount - 1;
+    }
+
+    public void add(long hash) {
+        int base = ((int) (hash >>> 32) & blockMask) * WORDS_PER_BLOCK;
+        long bits = Base62.mix(hash);
+        for (int probe = 0; probe < PROBES; probe++, bits >>>= 9) {
+            int index = base + (int) ((bits >>> 6) & 7);
+            long mask = 1L << (bits & 63);
+            long word;
+            while (((word = words.get(index)) & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                // retry: another bit in this word was set concurrently
+            }
+        }
+    }
+
+    public boolean mightContain(long hash) {
+        int base = ((int) (hash >>> 32) & blockMask) * WORDS_PER_BLOCK;
+        long bits = Base62.mix(hash);
+        for (int probe = 0; probe < PROBES; probe++, bits >>>= 9) {
+            if ((words.get(base + (int) ((bits >>> 6) & 7)) & (1L << (bits & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+📌 ScalableBloomFilter (Growing Dedup Fast Path)
+A stack of BloomFilters for when the number of keys is not known up front. Once the newest
+layer has taken its capacity, a layer twice as large with two more bits per key is added on
+top, so memory follows the keys actually added. The false-positive rate stays bounded no
+matter how many arrive, because the per-layer rates shrink geometrically. Lookups ask the
+newest (largest) layer first.
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ScalableBloomFilter {
+    private static final int MAX_BITS_PER_KEY = 20;
+
+    private volatile Layer newest;
+
+    public ScalableBloomFilter(long initialCapacity, int bitsPerKey) {
+        this.newest = new Layer(Math.max(1, initialCapacity), bitsPerKey, null);
+    }
+
+    public void add(long hash) {
+        Layer layer = newest;
+        if (layer.added.incrementAndGet() > layer.capacity) {
+            layer = grow(layer);
+        }
+        layer.filter.add(hash);
+    }
+
+    public boolean mightContain(long hash) {
+        for (Layer layer = newest; layer != null; layer = layer.older) {
+            if (layer.filter.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Layer grow(Layer full) {
+        if (newest == full) {
+            newest = new Layer(full.capacity * 2, Math.min(MAX_BITS_PER_KEY, full.bitsPerKey + 2), full);
+        }
+        return newest;
+    }
+
+    private static final class Layer {
+        final BloomFilter filter;
+        final long capacity;
+        final int bitsPerKey;
+        final Layer older;
+        final AtomicLong added = new AtomicLong();
+
+        Layer(long capacity, int bitsPerKey, Layer older) {
+            this.filter = new BloomFilter(capacity, bitsPerKey);
+            this.capacity = capacity;
+            this.bitsPerKey = bitsPerKey;
+            this.older = older;
+        }
+    }
+}
+
+📌 DedupIndex (Long URL -> Short Code)
+Reverse index so shortening a URL twice returns its existing code. It is keyed by a 64-bit
+fingerprint of the long URL and holds the packed code, plus a second, independently seeded
+64-bit hash of the URL per code: 32 bytes per entry in two LongHashTables instead of a second
+copy of every URL string. A hit is reused only if both hashes match and the store still holds
+the code, which stores answer from their in-memory index, so finding an existing code reads
+no long URL from disk. A fingerprint collision, or a mapping that was deleted, just leads to a
+fresh code; codes with an expiry are never registered.
+
+Over a durable store the index is rebuilt from the mappings already stored, so URLs shortened
+before a restart keep their codes. The rebuild reads every stored URL, so it runs on its own
+thread after open instead of holding up startup: redirects never touch the index, hits are
+served as entries arrive, and only a shorten that misses waits for the rebuild to finish.
+
+import java.util.concurrent.CountDownLatch;
+
+public class DedupIndex {
+    private static final long FINGERPRINT_SEED = 0x9e3779b97f4a7c15L;
+    private static final long CHECK_SEED = 0xd6e8feb86659fd93L;
+
+    private final Database database;
+    private final ScalableBloomFilter seen;
+    private final LongHashTable codes;
+    private final LongHashTable checks;
+    private final CountDownLatch rebuilt = new CountDownLatch(1);
+
+    // expectedURLs sizes the first Bloom layer and the tables; all grow past it as needed.
+    public DedupIndex(Database database, long expectedURLs) {
+        this.database = database.backingStore();
+        this.seen = new ScalableBloomFilter(expectedURLs, 10);
+        this.codes = new LongHashTable((int) Math.min(expectedURLs, 1 << 16));
+        this.checks = new LongHashTable((int) Math.min(expectedURLs, 1 << 16));
+        if (this.database.isDurable()) {
+            Thread.ofPlatform().daemon().name("dedup-rebuild").start(this::rebuild);
+        } else {
+            rebuilt.countDown();
+        }
+    }
+
+    private void rebuild() {
+        try {
+            database.forEachMapping((shortURL, longURL, expiresAtMillis) -> {
+                if (expiresAtMillis == 0) {
+                    register(longURL, fingerprint(longURL), shortURL);
+                }
+            });
+        } catch (RuntimeException e) {
+            // URLs the walk did not reach get fresh codes; waiting shortens must not hang.
+            System.err.println("Dedup index rebuild stopped early: " + e);
+        } finally {
+            rebuilt.countDown();
+        }
+    }
+
+    public String find(String longURL, long fingerprint) {
+        String shortURL = lookup(longURL, fingerprint);
+        if (shortURL == null && rebuilt.getCount() != 0) {
+            try {
+                rebuilt.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            shortURL = lookup(longURL, fingerprint);
+        }
+        return shortURL;
+    }
+
+    private String lookup(String longURL, long fingerprint) {
+        if (!seen.mightContain(fingerprint)) {
+            return null;
+        }
+        long packed = codes.get(fingerprint);
+        if (packed == 0) {
+            return null;
+        }
+        return verify(packed, check(longURL));
+    }
+
+    // The code for packed if it was registered for a URL with this check hash and is still stored.
+    private String verify(long packed, long check) {
+        if (checks.get(packed) != check) {
+            return null;
+        }
+        String shortURL = Base62.unpack(packed);
+        return database.containsMapping(shortURL) ? shortURL : null;
+    }
+
+    // Returns the code to use for longURL: shortURL, or a code registered for it concurrently.
+    public String register(String longURL, long fingerprint, String shortURL) {
+        long packed = Base62.pack(shortURL);
+        if (packed == 0) {
+            return shortURL; // not packable, e.g. a long custom alias; not deduplicated
+        }
+        long check = check(longURL);
+        checks.put(packed, check); // before the code is reachable through codes
+        seen.add(fingerprint);
+        long existing = codes.putIfAbsent(fingerprint, packed);
+        if (existing == 0 || existing == packed) {
+            return shortURL;
+        }
+        String existingShortURL = verify(existing, check);
+        if (existingShortURL != null) {
+            checks.remove(packed); // the caller deletes our mapping
+            return existingShortURL;
+        }
+        codes.put(fingerprint, packed); // stale entry or fingerprint collision: latest wins
+        checks.remove(existing);
+        return shortURL;
+    }
+
+    // 64-bit hash of the URL's chars, four at a time; never 0 (LongHashTable's empty key).
+    public static long fingerprint(String longURL) {
+        return hash(longURL, FINGERPRINT_SEED);
+    }
+
+    // The same hash under another seed, stored per code to confirm a fingerprint hit.
+    static long check(String longURL) {
+        return hash(longURL, CHECK_SEED);
+    }
+
+    private static long hash(String longURL, long seed) {
+        long hash = seed ^ longURL.length();
+        int i = 0;
+        for (; i + 4 <= longURL.length(); i += 4) {
+            long block = longURL.charAt(i) | (long) longURL.charAt(i + 1) << 16
+                    | (long) longURL.charAt(i + 2) << 32 | (long) longURL.charAt(i + 3) << 48;
+            hash = Long.rotateLeft(hash ^ Base62.mix(block), 27) * 0x9e3779b97f4a7c15L;
+        }
+        for (; i < longURL.length(); i++) {
+            hash = Long.rotateLeft(hash ^ longURL.charAt(i), 31) * 0xc2b2ae3d27d4eb4fL;
+        }
+        hash = Base62.mix(hash);
+        return hash == 0 ? 1 : hash;
+    }
+}
+
+📌 RateLimiter (Abuse Protection)
+Limits how fast each client may create short URLs, protecting the store and the code
+generator from abusive bulk writers. URLShortener consults it in shortenURL(longURL, clientId)
+and shortenAll(longURLs, clientId); a rejected call throws RateLimitExceededException.
+
+public interface RateLimiter {
+    // All or nothing: either every permit is granted or none is. A request for more permits
+    // than the limiter can ever grant at once throws IllegalArgumentException rather than
+    // failing on every retry.
+    boolean tryAcquire(String clientId, int permits);
+
+    default boolean tryAcquire(String clientId) {
+        return tryAcquire(clientId, 1);
+    }
+}
+
+public class RateLimitExceededException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final String clientId;
+
+    public RateLimitExceededException(String clientId) {
+        super("Rate limit exceeded for client " + clientId);
+        this.clientId = clientId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+}
+
+📌 ClientStateTable (Per-Client Limiter State)
+Per-client state split over independent ConcurrentHashMap shards. A lookup for a known
+client is a lock-free get. A daemon sweeper walks one shard at a time and drops state that
+has gone idle, so memory tracks active clients rather than every client ever seen.
+Limiters only call a state idle when dropping it is the same as keeping it (a full bucket,
+an empty window), so eviction never changes a decision.
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+public class ClientStateTable<S> implements AutoCloseable {
+    private final ConcurrentHashMap<String, S>[] shards;
+    private final Function<String, S> factory;
+    private final Predicate<S> idle;
+    private final long sweepIntervalNanos;
+    private final Thread sweeper;
+    private volatile boolean closed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ClientStateTable(int shardCount, Function<String, S> factory, Predicate<S> idle, long sweepIntervalMillis) {
+        if (Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two: " + shardCount);
+        }
+        this.shards = new ConcurrentHashMap[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+        this.factory = factory;
+        this.idle = idle;
+        this.sweepIntervalNanos = sweepIntervalMillis * 1_000_000;
+        this.sweeper = Thread.ofPlatform().daemon().name("rate-limit-sweeper").start(this::sweepLoop);
+    }
+
+    public S get(String clientId) {
+        ConcurrentHashMap<String, S> shard = shards[(int) Base62.mix(clientId.hashCode()) & (shards.length - 1)];
+        S state = shard.get(clientId);
+        return state != null ? state : shard.computeIfAbsent(clientId, factory);
+    }
+
+    public long size() {
+        long size = 0;
+        for (ConcurrentHashMap<String, S> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public void sweep() {
+        for (ConcurrentHashMap<String, S> shard : shards) {
+            shard.values().removeIf(idle);
+        }
+    }
+
+    // One shard per step, so a sweep never holds up a large part of the table at once.
+    private void sweepLoop() {
+        int next = 0;
+        while (!closed) {
+            LockSupport.parkNanos(sweepIntervalNanos / shards.length);
+            shards[next].values().removeIf(idle);
+            next = (next + 1) & (shards.length - 1);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(sweeper);
+    }
+}
+
+📌 TokenBucketRateLimiter (Token Bucket)
+Token bucket implemented as GCRA: the whole bucket is one long per client, its
+"theoretical arrival time". A request moves it forward by one emission interval per permit
+and is allowed while it stays within burst intervals of now. One CAS, no refill
+arithmetic or timer. A client whose arrival time is in the past has a full bucket, which is
+exactly what a missing entry means, so it can be evicted.
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucketRateLimiter implements RateLimiter, AutoCloseable {
+    private final int burst;
+    private final long emissionIntervalNanos;
+    private final long burstNanos;
+    private final long origin = System.nanoTime();
+    private final ClientStateTable<AtomicLong> buckets;
+
+    public TokenBucketRateLimiter(double permitsPerSecond, int burst) {
+        this.burst = burst;
+        this.emissionIntervalNanos = (long) (1_000_000_000 / permitsPerSecond);
+        this.burstNanos = emissionIntervalNanos * burst;
+        this.buckets = new ClientStateTable<>(64, clientId -> new AtomicLong(),
+                bucket -> bucket.get() <= now(), 10_000);
+    }
+
+    @Override
+    public boolean tryAcquire(String clientId, int permits) {
+        if (permits > burst) {
+            throw new IllegalArgumentException("Batch of " + permits + " exceeds the burst of " + burst);
+        }
+        AtomicLong bucket = buckets.get(clientId);
+        long now = now();
+        long cost = emissionIntervalNanos * permits;
+        while (true) {
+            long arrival = bucket.get();
+            long next = Math.max(arrival, now) + cost;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    public long trackedClients() {
+        return buckets.size();
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    @Override
+    public void close() {
+        buckets.close();
+    }
+}
+
+📌 SlidingWindowLogRateLimiter (Sliding Window Log)
+Exact variant: at most limit acquisitions in any window, using a ring of the last limit
+timestamps per client. Acquisition number s lands in slot s % limit and is allowed only if
+that slot's previous acquisition (s - limit) has left the window. Each slot packs
+(timestamp, sequence) into one long. A request for n permits checks all n slots first and
+then claims them with one CAS on the client's sequence, so it gets all of them or none;
+a slot whose previous owner has claimed it but not stamped it yet counts as taken.
+Lock-free. Costs limit longs per active client, against one long for the token bucket.
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class SlidingWindowLogRateLimiter implements RateLimiter, AutoCloseable {
+    private static final int SEQUENCE_BITS = 22;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final int limit;
+    private final long windowMillis;
+    private final long origin = System.currentTimeMillis() - 1; // stamps are never 0 (empty slot)
+    private final ClientStateTable<ClientLog> logs;
+
+    public SlidingWindowLogRateLimiter(int limit, long windowMillis) {
+        if (limit <= 0 || limit > SEQUENCE_MASK / 2) {
+            throw new IllegalArgumentException("Limit out of range: " + limit);
+        }
+        this.limit = limit;
+        this.windowMillis = windowMillis;
+        this.logs = new ClientStateTable<>(64, clientId -> new ClientLog(limit),
+                log -> log.newestStamp() <= now() - windowMillis, Math.max(1_000, windowMillis));
+    }
+
+    @Override
+    public boolean tryAcquire(String clientId, int permits) {
+        if (permits > limit) {
+            throw new IllegalArgumentException("Batch of " + permits + " exceeds the limit of " + limit);
+        }
+        return permits <= 0 || logs.get(clientId).tryAcquire(now(), windowMillis, permits);
+    }
+
+    public long trackedClients() {
+        return logs.size();
+    }
+
+    private long now() {
+        return System.currentTimeMillis() - origin;
+    }
+
+    @Override
+    public void close() {
+        logs.close();
+    }
+
+    private static class ClientLog {
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicLongArray slots;
+
+        ClientLog(int limit) {
+            this.slots = new AtomicLongArray(limit);
+        }
+
+        boolean tryAcquire(long now, long windowMillis, int permits) {
+            int limit = slots.length();
+            outer:
+            while (true) {
+                long claimed = sequence.get();
+                for (long s = claimed; s < claimed + permits; s++) {
+                    long slot = slots.get((int) (s % limit));
+                    boolean previousStamped = s < limit
+                            || slot != 0 && (slot & SEQUENCE_MASK) == ((s - limit) & SEQUENCE_MASK);
+                    if (!previousStamped || slot != 0 && (slot >>> SEQUENCE_BITS) > now - windowMillis) {
+                        if (sequence.get() != claimed) {
+                            continue outer;
+                        }
+                        return false;
+                    }
+                }
+                if (sequence.compareAndSet(claimed, claimed + permits)) {
+                    for (long s = claimed; s < claimed + permits; s++) {
+                        slots.set((int) (s % limit), now << SEQUENCE_BITS | (s & SEQUENCE_MASK));
+                    }
+                    return true;
+                }
+            }
+        }
+
+        // A claimed but not yet stamped slot is as new as it gets, so the client is not idle.
+        long newestStamp() {
+            long claimed = sequence.get();
+            if (claimed == 0) {
+                return 0;
+            }
+            long slot = slots.get((int) ((claimed - 1) % slots.length()));
+            return (slot & SEQUENCE_MASK) == ((claimed - 1) & SEQUENCE_MASK) ? slot >>> SEQUENCE_BITS : Long.MAX_VALUE;
+        }
+    }
+}
+
+📌 RedirectServer (HTTP Front End)
+Serves real redirects over HTTP/1.1 on plain NIO. A fixed set of event-loop threads each
+own a Selector; the first one also accepts and hands connections out round robin.
+GET /{code} answers 302 with the Location header, 404 if the code is unknown or expired.
+POST / with the long URL as the body answers 201 with the short URL, or 400 unless it is an
+absolute http(s) URL.
+
+The redirect path allocates almost nothing. Status lines and headers are pre-encoded byte
+arrays and the Location is written straight into the connection's output buffer. All
+pipelined requests in one read are answered with a single write. Connections are
+keep-alive unless the client sends "Connection: close" (or speaks HTTP/1.0 without
+keep-alive). POSTs may block on a durable store, so they run on virtual threads; the
+connection stops reading until the response is queued, which keeps pipelined responses in
+order. GET lookups run on the event loop itself. That is cheap for in-memory stores and cache
+hits, but a miss on LogStructuredDatabase is a positional file read that stalls every other
+connection on that loop until it returns. Put a CachingDatabase in front of a durable store
+served this way. A RuntimeException while serving one connection closes just that connection.
+A failed accept closes only the new socket; if accept() itself fails (typically out of file
+descriptors) the first loop stops accepting for a moment instead of spinning or exiting.
+Request bodies are framed by Content-Length only: a request with Transfer-Encoding (or two
+Content-Length headers) is refused and its connection closed, so a chunked body can never
+be read as further pipelined requests. Redirects are recorded with the client's address as
+visitor id when click analytics are enabled; the loops are the bounded pool ClickAnalytics
+expects.
+
+Load test locally (wrk, keep-alive; add a pipelining script for more):
+    wrk -t4 -c256 -d30s http://127.0.0.1:8080/000000
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RedirectServer implements AutoCloseable {
+    private static final int INITIAL_BUFFER = 4096;
+    private static final int MAX_REQUEST_BYTES = 16 * 1024;
+    private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    private static final byte[] FOUND = ascii("HTTP/1.1 302 Found\r\nContent-Length: 0\r\n");
+    private static final byte[] CREATED = ascii("HTTP/1.1 201 Created\r\nContent-Type: text/plain\r\n");
+    private static final byte[] NOT_FOUND = ascii("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n");
+    private static final byte[] NOT_ALLOWED = ascii("HTTP/1.1 405 Method Not Allowed\r\nAllow: GET, HEAD, POST\r\nContent-Length: 0\r\n");
+    private static final byte[] TOO_MANY = ascii("HTTP/1.1 429 Too Many Requests\r\nRetry-After: 1\r\nContent-Length: 0\r\n");
+    private static final byte[] BAD_REQUEST = ascii("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n");
+    private static final byte[] TOO_LARGE = ascii("HTTP/1.1 413 Content Too Large\r\nContent-Length: 0\r\n");
+    private static final byte[] NOT_IMPLEMENTED = ascii("HTTP/1.1 501 Not Implemented\r\nContent-Length: 0\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] LOCATION = ascii("Location: ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] CRLF_CRLF = ascii("\r\n\r\n");
+    private static final byte[] SPACE = ascii(" ");
+    private static final byte[] QUESTION_MARK = ascii("?");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final URLShortener shortener;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private int nextLoop;
+    private volatile boolean closed;
+
+    public RedirectServer(URLShortener shortener, InetSocketAddress address) throws IOException {
+        this(shortener, address, Runtime.getRuntime().availableProcessors());
+    }
+
+    public RedirectServer(URLShortener shortener, InetSocketAddress address, int eventLoops) throws IOException {
+        this.shortener = shortener;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(address, 1024);
+        this.serverChannel.configureBlocking(false);
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        serverChannel.close();
+        workers.shutdown();
+    }
+
+    // Never throws: a socket that fails set-up is closed on its own, and a failing accept()
+    // pauses accepting (see EventLoop.pauseAccepting) rather than reaching the selector catch.
+    private void accept(EventLoop acceptor, SelectionKey acceptKey) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                acceptor.pauseAccepting(acceptKey);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                closeQuietly(channel); // e.g. reset before we got to it
+                continue;
+            }
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            SocketChannel accepted = channel;
+            loop.execute(() -> loop.register(accepted));
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        SelectionKey pausedAcceptKey;
+        long acceptResumeNanos;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = Thread.ofPlatform().name("redirect-loop-" + index).unstarted(this);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        // Out of file descriptors, accept() fails on every select; give connections time to close.
+        void pauseAccepting(SelectionKey acceptKey) {
+            acceptKey.interestOps(0);
+            pausedAcceptKey = acceptKey;
+            acceptResumeNanos = System.nanoTime() + ACCEPT_BACKOFF_MILLIS * 1_000_000;
+        }
+
+        void resumeAcceptingIfDue() {
+            if (pausedAcceptKey != null && System.nanoTime() - acceptResumeNanos >= 0) {
+                if (pausedAcceptKey.isValid()) {
+                    pausedAcceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+                pausedAcceptKey = null;
+            }
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    // Tasks queued by this loop itself (e.g. a connection it just accepted) must not
+                    // wait for the next network event.
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (pausedAcceptKey != null) {
+                        selector.select(Math.max(1, (acceptResumeNanos - System.nanoTime()) / 1_000_000));
+                    } else {
+                        selector.select();
+                    }
+                    resumeAcceptingIfDue();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // One bad task must not take the loop's other connections down with it.
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(this, key);
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // e.g. an UncheckedIOException from a store read: drop this
+                            // connection, keep serving the rest.
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // A selector failure is not recoverable for this loop's connections.
+                    break;
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final String visitorId;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER);
+        boolean closeAfterFlush;
+        boolean awaitingWorker;
+
+        Connection(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.visitorId = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_REQUEST_BYTES) {
+                    reject(TOO_LARGE);
+                    flush();
+                    return;
+                }
+                in = grow(in, MAX_REQUEST_BYTES);
+            }
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            processRequests();
+            flush();
+        }
+
+        // Answers every complete request in the input buffer, in order.
+        void processRequests() {
+            in.flip();
+            byte[] data = in.array();
+            while (!awaitingWorker && !closeAfterFlush && in.hasRemaining()) {
+                int start = in.position();
+                int headerEnd = indexOf(data, start, in.limit(), CRLF_CRLF);
+                if (headerEnd < 0) {
+                    break;
+                }
+                int methodEnd = indexOf(data, start, headerEnd, SPACE);
+                int pathEnd = methodEnd < 0 ? -1 : indexOf(data, methodEnd + 1, headerEnd, SPACE);
+                int lineEnd = indexOf(data, start, headerEnd + 2, CRLF);
+                if (pathEnd < 0 || lineEnd < pathEnd) {
+                    reject(BAD_REQUEST);
+                    break;
+                }
+                boolean http10 = regionMatches(data, lineEnd - 3, "1.0");
+                long contentLength = 0;
+                boolean keepAlive = !http10;
+                boolean unframed = false;
+                boolean duplicateLength = false;
+                boolean sawLength = false;
+                for (int line = lineEnd + 2; line < headerEnd; ) {
+                    int next = indexOf(data, line, headerEnd + 2, CRLF);
+                    if (headerNameIs(data, line, next, "content-length")) {
+                        duplicateLength |= sawLength;
+                        sawLength = true;
+                        contentLength = parseDecimal(data, line + 15, next);
+                    } else if (headerNameIs(data, line, next, "transfer-encoding")) {
+                        unframed = true;
+                    } else if (headerNameIs(data, line, next, "connection")) {
+                        keepAlive = headerValueContains(data, line + 11, next, "keep-alive")
+                                || (!http10 && !headerValueContains(data, line + 11, next, "close"));
+                    }
+                    line = next + 2;
+                }
+                // Where this request ends is ambiguous, so nothing after it can be trusted as a request.
+                if (unframed) {
+                    reject(NOT_IMPLEMENTED);
+                    break;
+                }
+                if (duplicateLength) {
+                    reject(BAD_REQUEST);
+                    break;
+                }
+                int bodyStart = headerEnd + 4;
+                if (contentLength < 0 || contentLength > MAX_REQUEST_BYTES) {
+                    reject(TOO_LARGE);
+                    break;
+                }
+                if (in.limit() - bodyStart < contentLength) {
+                    break; // body not fully read yet
+                }
+                in.position(bodyStart + (int) contentLength);
+                closeAfterFlush = !keepAlive;
+
+                int methodLength = methodEnd - start;
+                if (methodLength == 3 && regionMatches(data, start, "GET")
+                        || methodLength == 4 && regionMatches(data, start, "HEAD")) {
+                    redirect(data, methodEnd + 1, pathEnd);
+                } else if (methodLength == 4 && regionMatches(data, start, "POST")) {
+                    shortenAsync(new String(data, bodyStart, (int) contentLength, StandardCharsets.UTF_8).trim());
+                } else {
+                    writeHead(NOT_ALLOWED);
+                    put(CRLF);
+                }
+            }
+            in.compact();
+        }
+
+        void redirect(byte[] data, int pathStart, int pathEnd) {
+            int codeEnd = pathEnd;
+            int query = indexOf(data, pathStart, pathEnd, QUESTION_MARK);
+            if (query >= 0) {
+                codeEnd = query;
+            }
+            String longURL = null;
+            if (codeEnd - pathStart > 1 && data[pathStart] == '/') {
+                String code = new String(data, pathStart + 1, codeEnd - pathStart - 1, StandardCharsets.ISO_8859_1);
+                longURL = shortener.getOriginalURL(code, visitorId);
+            }
+            if (longURL == null) {
+                writeHead(NOT_FOUND);
+                put(CRLF);
+                return;
+            }
+            writeHead(FOUND);
+            put(LOCATION);
+            putLocation(longURL);
+            put(CRLF);
+            put(CRLF);
+        }
+
+        void shortenAsync(String longURL) {
+            awaitingWorker = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            workers.execute(() -> {
+                String shortURL = null;
+                byte[] failure = null;
+                try {
+                    shortURL = longURL.isEmpty() ? null : shortener.shortenURL(longURL, visitorId);
+                    failure = shortURL == null ? BAD_REQUEST : null;
+                } catch (RateLimitExceededException e) {
+                    failure = TOO_MANY;
+                } catch (RuntimeException e) {
+                    failure = BAD_REQUEST;
+                }
+                String created = shortURL;
+                byte[] error = failure;
+                loop.execute(() -> {
+                    if (!channel.isOpen()) {
+                        return;
+                    }
+                    if (error != null) {
+                        writeHead(error);
+                        put(CRLF);
+                    } else {
+                        writeHead(CREATED);
+                        put(LOCATION);
+                        putString(created);
+                        put(CRLF);
+                        put(CONTENT_LENGTH);
+                        putString(Integer.toString(created.length() + 1));
+                        put(CRLF);
+                        put(CRLF);
+                        putString(created);
+                        out.put((byte) '\n');
+                    }
+                    awaitingWorker = false;
+                    try {
+                        processRequests();
+                        flush();
+                    } catch (IOException | RuntimeException e) {
+                        close();
+                    }
+                });
+            });
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining() && channel.write(out) > 0) {
+                // keep writing until the socket buffer is full
+            }
+            boolean pending = out.hasRemaining();
+            out.compact();
+            if (!pending && closeAfterFlush && !awaitingWorker) {
+                close();
+                return;
+            }
+            int ops = pending ? SelectionKey.OP_WRITE : 0;
+            // Stop reading while a POST is in flight or the client isn't draining responses.
+            if (!awaitingWorker && out.position() < MAX_PENDING_OUTPUT && !closeAfterFlush) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        void reject(byte[] head) {
+            closeAfterFlush = true;
+            writeHead(head);
+            put(CRLF);
+        }
+
+        void writeHead(byte[] head) {
+            put(head);
+            if (closeAfterFlush) {
+                put(CONNECTION_CLOSE);
+            }
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            out.put(bytes);
+        }
+
+        // Header values are ASCII in practice; anything else goes out as UTF-8.
+        void putString(String value) {
+            ensure(value.length());
+            int start = out.position();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    out.position(start);
+                    put(value.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                out.put((byte) c);
+            }
+        }
+
+        // Stores only accept validated URLs, but a store written by something else must still
+        // not be able to split the response: controls, spaces and non-ASCII go out percent-encoded.
+        void putLocation(String url) {
+            ensure(url.length());
+            for (int i = 0; i < url.length(); ) {
+                int c = url.codePointAt(i);
+                i += Character.charCount(c);
+                if (c > 0x20 && c < 0x7f) {
+                    ensure(1);
+                    out.put((byte) c);
+                    continue;
+                }
+                for (byte b : new String(Character.toChars(c)).getBytes(StandardCharsets.UTF_8)) {
+                    ensure(3);
+                    out.put((byte) '%');
+                    out.put((byte) HEX[(b >> 4) & 0xf]);
+                    out.put((byte) HEX[b & 0xf]);
+                }
+            }
+        }
+
+        void ensure(int bytes) {
+            if (out.remaining() < bytes) {
+                out = grow(out, out.position() + bytes);
+            }
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minimum) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(minimum, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, String expected) {
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (data[offset + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean headerNameIs(byte[] data, int start, int end, String lowerCaseName) {
+        int length = lowerCaseName.length();
+        if (end - start <= length || data[start + length] != ':') {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ((data[start + i] | 0x20) != lowerCaseName.charAt(i) && data[start + i] != lowerCaseName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean headerValueContains(byte[] data, int start, int end, String lowerCaseToken) {
+        String value = new String(data, start, Math.max(0, end - start), StandardCharsets.ISO_8859_1);
+        return value.toLowerCase().contains(lowerCaseToken);
+    }
+
+    private static long parseDecimal(byte[] data, int start, int end) {
+        long value = 0;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits = true;
+                if (value > Integer.MAX_VALUE) {
+                    return -1;
+                }
+            } else if (b != ' ' && b != '\t') {
+                return -1;
+            }
+        }
+        return digits ? value : -1;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing useful to do while closing
+        }
+    }
+}
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class URLShortenerDemo {
+    public static void main(String[] args) throws Exception {
+        CachingDatabase cache = new CachingDatabase(new ShardedDatabase(), 64L << 20, 30_000);
+        URLShortener urlShortener = new URLShortener(cache);
+        
+        String longURL = "https://www.example.com/articles/design-url-shortener-java";
+        
+        // Shorten URL
+        String shortURL = urlShortener.shortenURL(longURL);
+        System.out.println("Short URL: " + shortURL);
+
+        // Retrieve original URL
+        String retrievedURL = urlShortener.getOriginalURL(shortURL);
+        System.out.println("Retrieved URL: " + retrievedURL);
+
+        // Shortening the same URL again returns the existing code
+        System.out.println("Shortened again: " + urlShortener.shortenURL(longURL));
+
+        // Real redirects over HTTP, including two pipelined requests on one connection
+        try (RedirectServer server = new RedirectServer(urlShortener, new InetSocketAddress("127.0.0.1", 0), 2)) {
+            server.start();
+            try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+                String body = "https://www.example.com/from-http";
+                String requests = "POST / HTTP/1.1\r\nHost: short.ly\r\nContent-Length: " + body.length() + "\r\n\r\n" + body
+                        + "GET /" + shortURL.substring(shortURL.lastIndexOf('/') + 1) + " HTTP/1.1\r\nHost: short.ly\r\n\r\n"
+                        + "GET /nope HTTP/1.1\r\nHost: short.ly\r\nConnection: close\r\n\r\n";
+                socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+                String responses = new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+                for (String line : responses.split("\r?\n")) {
+                    if (line.startsWith("HTTP/1.1") || line.startsWith("Location")) {
+                        System.out.println("HTTP: " + line);
+                    }
+                }
+            }
+        }
+
+        // Per-client rate limiting: a burst of 20, then 10 per second
+        try (TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 20)) {
+            urlShortener.setRateLimiter(limiter);
+            int accepted = 0;
+            for (int i = 0; i < 50; i++) {
+                try {
+                    urlShortener.shortenURL("https://www.example.com/spam/" + i, "client-42");
+                    accepted++;
+                } catch (RateLimitExceededException e) {
+                    // rejected without touching the store
+                }
+            }
+            System.out.println("Rate limited: " + accepted + " of 50 accepted for client-42");
+            urlShortener.setRateLimiter(null);
+        }
+
+        // Repeated redirects are served from the cache; unknown codes are cached negatively
+        for (int i = 0; i < 5; i++) {
+            urlShortener.getOriginalURL(shortURL);
+            urlShortener.getOriginalURL("https://short.ly/zzzzzz");
+        }
+        System.out.println("Cache: " + cache.getStats());
+
+        // Redirects with a visitor id are counted; the aggregator folds them off the request path
+        try (ClickAnalytics analytics = new ClickAnalytics()) {
+            urlShortener.setClickAnalytics(analytics);
+            String popularURL = urlShortener.shortenURL("https://www.example.com/popular");
+            for (int i = 0; i < 200_000; i++) {
+                urlShortener.getOriginalURL(i % 3 == 0 ? shortURL : popularURL, "visitor-" + (i % 5_000));
+                if ((i & 1023) == 1023) {
+                    Thread.sleep(1); // traffic arrives in bursts, not one tight loop
+                }
+            }
+            analytics.flush();
+            System.out.printf("Clicks: %d, dropped=%d, unique visitors~%d, %s clicks last hour=%d%n",
+                    analytics.getTotalClicks(), analytics.getDroppedClicks(), analytics.getUniqueVisitors(),
+                    popularURL, analytics.getClicksLastHour(popularURL.replace("https://short.ly/", "")));
+            System.out.println("Top URLs last hour: " + analytics.topURLsLastHour(5));
+            urlShortener.setClickAnalytics(null);
+        }
+
+        // Expiring URLs stop resolving once their TTL passes, even before the wheel removes them
+        String temporaryURL = urlShortener.shortenURL("https://www.example.com/flash-sale", 1_500);
+        System.out.println("Temporary URL: " + temporaryURL + " -> " + urlShortener.getOriginalURL(temporaryURL));
+        Thread.sleep(3_000);
+        System.out.println("After expiry: " + temporaryURL + " -> " + urlShortener.getOriginalURL(temporaryURL)
+                + " (cache " + cache.getStats() + ")");
+
+        // Mappings in the log-structured store survive a restart; so does the id counter
+        Path dataDirectory = Files.createTempDirectory("url-shortener");
+        Path idCounter = dataDirectory.resolve("ids");
+        String firstDurableURL;
+        try (LogStructuredDatabase durable = new LogStructuredDatabase(dataDirectory);
+             FileIdAllocator ids = new FileIdAllocator(idCounter);
+             URLShortener durableShortener = new URLShortener(durable, ids)) {
+            firstDurableURL = durableShortener.shortenURL("https://www.example.com/first");
+            durable.saveURLMapping("docs", "https://www.example.com/docs");
+
+            // Bulk ingestion: one fsync per batch instead of one per URL; duplicates share a code
+            List<String> batch = new ArrayList<>();
+            for (int i = 0; i < 2_000; i++) {
+                batch.add("https://www.example.com/items/" + (i % 1_500));
+            }
+            long start = System.nanoTime();
+            for (String url : batch) {
+                durableShortener.shortenURL(url.replace("items", "single"));
+            }
+            long oneByOne = System.nanoTime() - start;
+            start = System.nanoTime();
+            List<String> shortURLs = durableShortener.shortenAll(batch);
+            long batched = System.nanoTime() - start;
+            System.out.printf("shortenURL x%d: %d ms, shortenAll: %d ms, codes issued: %d%n",
+                    batch.size(), oneByOne / 1_000_000, batched / 1_000_000,
+                    shortURLs.stream().distinct().count());
+            System.out.println("resolveAll: " + durableShortener.resolveAll(shortURLs.subList(0, 2)));
+        }
+        try (LogStructuredDatabase reopened = new LogStructuredDatabase(dataDirectory);
+             FileIdAllocator ids = new FileIdAllocator(idCounter);
+             URLShortener restarted = new URLShortener(reopened, ids)) {
+            System.out.println("After restart: docs -> " + reopened.getLongURL("docs"));
+            String next = restarted.shortenURL("https://www.example.com/after-restart");
+            System.out.println("After restart: new code " + next + ", " + firstDurableURL + " -> "
+                    + restarted.getOriginalURL(firstDurableURL));
+        }
+    }
+}
+ 4. Key Considerations
+📌 Scalability
+Use Distributed Databases (e.g., Cassandra, DynamoDB) instead of a single in-memory database.
+
+Partition data by hashing URLs and distributing across multiple nodes.
+
+📌 Performance
+Caching: Frequently accessed URLs should be cached for faster retrieval (e.g., Redis, Memcached).
+
+Load Balancing: Handle high request rates by using load balancers (Nginx, Apigee).
+
+📌 Security
+Rate Limiting: Prevent abuse by limiting URL shortening requests.
+
+Blacklist Filtering: Prevent malicious URLs from being shortened.
+
+Input Validation: Accept only absolute http(s) URLs without control characters, and escape the
+Location header on the way out, so a stored URL can never split the HTTP response.
 
 Authorization: Restrict URL shortening to authenticated users (if required).
 